@@ -0,0 +1,190 @@
+package edu.uw.cs.cse461.ConsoleApps;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.Net.Base.NetBase;
+import edu.uw.cs.cse461.Net.Base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.Net.DDNS.DDNSFullName;
+import edu.uw.cs.cse461.Net.DDNS.DDNSService;
+import edu.uw.cs.cse461.util.ConfigManager;
+
+/**
+ * A load test for the DDNS name tree.  It must run on a node that's running the DDNS service.
+ * <p>
+ * Threads resolve the A names in the config's ddns.nodes that are in the subtree named by
+ * ddnsloadtest.zone as fast as they can, while other threads keep registering and unregistering
+ * the same names.  The calls go straight to the service's RPC routines, so what's measured is the
+ * name tree, not the network.  The test is repeated with 1, 2, 4, ... resolving threads, up to
+ * ddnsloadtest.threads, and prints the resolve throughput of each.
+ * <p>
+ * The registrations are fake, so the test leaves real names alone: it won't run without
+ * ddnsloadtest.zone, or against a service that keeps registrations on disk (ddns.storedir),
+ * and it unregisters its names when it's done.
+ * <p>
+ * Every registration of a name uses a port derived from its IP address.  A resolve that
+ * returns an address with any other port saw half of one registration and half of another,
+ * and is counted as an error.
+ */
+public class DDNSLoadTest extends NetLoadableConsoleApp {
+	private static final String TAG="DDNSLoadTest";
+
+	// ConsoleApp's must have a constructor taking no arguments
+	public DDNSLoadTest() {
+		super("ddnsloadtest", true);
+	}
+
+	@Override
+	public void run() {
+		try {
+			ConfigManager config = NetBase.theNetBase().config();
+			DDNSService ddns = (DDNSService)NetBase.theNetBase().getService("ddns");
+			if ( ddns == null ) {
+				System.out.println("The ddns service isn't running on this node");
+				return;
+			}
+
+			String storeDir = config.getProperty("ddns.storedir");
+			if ( storeDir != null && !storeDir.trim().isEmpty() ) {
+				System.out.println("The ddns service keeps registrations in " + storeDir + "; run the load test against one that doesn't");
+				return;
+			}
+			String zone = config.getProperty("ddnsloadtest.zone");
+			if ( zone == null || zone.trim().isEmpty() ) {
+				System.out.println("Set ddnsloadtest.zone to the subtree of ddns.nodes the test may register names in");
+				return;
+			}
+			DDNSFullName testZone = new DDNSFullName(zone.trim());
+
+			// the A names in the test subtree, and their passwords, from the tree's definition
+			List<String> names = new ArrayList<String>();
+			List<String> passwords = new ArrayList<String>();
+			String[] nodes = config.getAsStringVec("ddns.nodes");
+			if ( nodes != null ) {
+				for ( String node : nodes ) {
+					String[] nodeInfo = node.trim().split(":");
+					if ( nodeInfo.length == 3 && nodeInfo[0].equalsIgnoreCase("A") && new DDNSFullName(nodeInfo[1]).isDescendantOf(testZone) ) {
+						names.add(nodeInfo[1]);
+						passwords.add(nodeInfo[2]);
+					}
+				}
+			}
+			if ( names.isEmpty() ) {
+				System.out.println("ddns.nodes has no A records under " + testZone + " to resolve");
+				return;
+			}
+
+			int maxThreads = config.getAsInt("ddnsloadtest.threads", 2*Runtime.getRuntime().availableProcessors(), 1, TAG);
+			int nRegisterThreads = config.getAsInt("ddnsloadtest.registerthreads", 2, 0, TAG);
+			int seconds = config.getAsInt("ddnsloadtest.seconds", 5, 1, TAG);
+
+			System.out.println(names.size() + " names, " + nRegisterThreads + " registering threads, " + seconds + " seconds per trial");
+			System.out.println(String.format("%8s %14s %10s %10s %8s", "threads", "resolves/sec", "speedup", "registers", "errors"));
+			double base = 0.0;
+			for ( int nThreads=1; nThreads<=maxThreads; nThreads *= 2 ) {
+				Trial trial = new Trial(ddns, names, passwords);
+				trial.run(nThreads, nRegisterThreads, seconds);
+				double rate = trial.mResolves.get() / (double)seconds;
+				if ( base == 0.0 ) base = rate;
+				System.out.println(String.format("%8d %14.0f %10.2f %10d %8d", nThreads, rate, rate/base, trial.mRegisters.get(), trial.mErrors.get()));
+			}
+
+			// leave no fake address behind
+			for ( int i=0; i<names.size(); i++ ) {
+				ddns._rpcUnregister(new JSONObject().put("name", names.get(i)).put("password", passwords.get(i)));
+			}
+		} catch (Exception e) {
+			System.out.println("DDNSLoadTest.run() caught exception: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * One timed run with a given number of resolving threads.
+	 */
+	private static class Trial {
+		private final DDNSService mDDNS;
+		private final List<String> mNames;
+		private final List<String> mPasswords;
+		private volatile boolean mDone = false;
+		final AtomicLong mResolves = new AtomicLong();
+		final AtomicLong mRegisters = new AtomicLong();
+		final AtomicLong mErrors = new AtomicLong();
+
+		Trial(DDNSService ddns, List<String> names, List<String> passwords) {
+			mDDNS = ddns;
+			mNames = names;
+			mPasswords = passwords;
+		}
+
+		void run(int nResolveThreads, int nRegisterThreads, int seconds) throws InterruptedException {
+			List<Thread> threads = new ArrayList<Thread>();
+			for ( int i=0; i<nResolveThreads; i++ ) {
+				final long seed = i;
+				threads.add(new Thread() {
+					public void run() { resolveLoop(new Random(seed)); }
+				});
+			}
+			for ( int i=0; i<nRegisterThreads; i++ ) {
+				final long seed = -1 - i;
+				threads.add(new Thread() {
+					public void run() { registerLoop(new Random(seed)); }
+				});
+			}
+			for ( Thread t : threads ) t.start();
+			Thread.sleep(seconds*1000L);
+			mDone = true;
+			for ( Thread t : threads ) t.join();
+		}
+
+		private void resolveLoop(Random random) {
+			long n = 0;
+			try {
+				while ( !mDone ) {
+					String name = mNames.get(random.nextInt(mNames.size()));
+					JSONObject result = mDDNS._rpcResolve(new JSONObject().put("name", name));
+					String resultType = result.getString("resulttype");
+					if ( resultType.equals("resolveresult") ) {
+						JSONObject node = result.getJSONObject("node");
+						if ( node.has("ip") && node.getInt("port") != portFor(node.getString("ip")) ) mErrors.incrementAndGet();
+					} else if ( !resultType.equals("ddnsexception") || result.getInt("exceptionnum") != 2 ) {
+						// anything but "no address" is unexpected
+						mErrors.incrementAndGet();
+					}
+					n++;
+				}
+			} catch (Exception e) {
+				mErrors.incrementAndGet();
+			}
+			mResolves.addAndGet(n);
+		}
+
+		private void registerLoop(Random random) {
+			try {
+				while ( !mDone ) {
+					int which = random.nextInt(mNames.size());
+					JSONObject args = new JSONObject().put("name", mNames.get(which)).put("password", mPasswords.get(which));
+					JSONObject result;
+					if ( random.nextInt(4) == 0 ) {
+						result = mDDNS._rpcUnregister(args);
+					} else {
+						String ip = "10.0." + random.nextInt(256) + "." + random.nextInt(256);
+						result = mDDNS._rpcRegister(args.put("ip", ip).put("port", portFor(ip)));
+					}
+					if ( result.getString("resulttype").equals("ddnsexception") ) mErrors.incrementAndGet();
+					mRegisters.incrementAndGet();
+				}
+			} catch (Exception e) {
+				mErrors.incrementAndGet();
+			}
+		}
+
+		// the port every registration of ip uses
+		private static int portFor(String ip) {
+			return 1024 + (ip.hashCode() & 0x7fff);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package edu.uw.cs.cse461.ConsoleApps;
 
 import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 
 import org.json.JSONObject;
@@ -9,7 +10,6 @@ import edu.uw.cs.cse461.ConsoleApps.DataXferInterface.DataXferRPCInterface;
 import edu.uw.cs.cse461.Net.Base.NetBase;
 import edu.uw.cs.cse461.Net.Base.NetLoadable.NetLoadableConsoleApp;
 import edu.uw.cs.cse461.Net.RPC.RPCCall;
-import edu.uw.cs.cse461.util.Base64;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.SampledStatistic.TransferRate;
 import edu.uw.cs.cse461.util.SampledStatistic.TransferRateInterval;
@@ -96,14 +96,23 @@ public class DataXferRPC extends NetLoadableConsoleApp implements DataXferRPCInt
 			TransferRate.start("dataxferrpc");
 			JSONObject response = RPCCall.invoke(hostIP, port, "dataxferrpc", "dataxfer", new JSONObject().put("xferLength", xferLength) );
 			if(response.has("data")) {
-				byte[] data = Base64.decode(response.getString("data"));
-				if(data.length == xferLength) {
-					TransferRate.stop("dataxferrpc", data.length);
+				// the data may be streamed; count it as it arrives rather than holding onto it
+				InputStream data = RPCCall.getStream(response, "data");
+				byte[] buf = new byte[64*1024];
+				int total = 0;
+				try {
+					int n;
+					while((n = data.read(buf)) >= 0) total += n;
+				} finally {
+					data.close();
+				}
+				if(total == xferLength) {
+					TransferRate.stop("dataxferrpc", total);
 					System.out.println("All data recieved!");
 					
 				} else {
-					TransferRate.abort("dataxferrpc", data.length);
-					System.out.println("Only recieved " + data.length + " of " + xferLength + " bytes");
+					TransferRate.abort("dataxferrpc", total);
+					System.out.println("Only recieved " + total + " of " + xferLength + " bytes");
 				}
 			} else {
 				TransferRate.stop("dataxferrpc", 0);
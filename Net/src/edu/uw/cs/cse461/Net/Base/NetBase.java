@@ -35,6 +35,7 @@ public abstract class NetBase implements NetBaseInterface {
 	private boolean mAmShutdown = true;
 	private ConfigManager mConfig;
 	private String mHostname;
+	private NetScheduler mScheduler;
 
 	/**
 	 * Used to keep track of started services. The String key is the name
@@ -105,6 +106,10 @@ public abstract class NetBase implements NetBaseInterface {
 		}
 		Log.d(TAG, "Booting host '" + mHostname + "'");
 
+		// shared by the services for timeouts, renewals and periodic cleanup
+		mScheduler = new NetScheduler(mConfig.getAsInt("net.scheduler.threads", 2, 1, TAG),
+										mConfig.getAsInt("net.scheduler.late", 100, 0, TAG));
+
 		mAmShutdown = false; // at this point, we're up, but with no services
 								// running
 
@@ -185,6 +190,8 @@ public abstract class NetBase implements NetBaseInterface {
 			}
 			// We can't remove items from the HashMap while iterating
 			serviceMap.clear();
+			// after the services, which cancel their own tasks as they shut down
+			mScheduler.shutdown();
 		} catch (Exception e) {
 			Log.e(TAG, "Error shutting down services: " + e.getMessage());
 			throw new RuntimeException(e.getMessage());
@@ -226,6 +233,17 @@ public abstract class NetBase implements NetBaseInterface {
 		return mHostname;
 	}
 
+	/**
+	 * Returns the scheduler the services share for running tasks later, or periodically.
+	 * 
+	 * @return
+	 */
+	@Override
+	public NetScheduler scheduler() {
+		check("scheduler");
+		return mScheduler;
+	}
+
 	/**
 	 * Takes the value returned by the loadablename() method of the service
 	 * you're looking for, and returns that service. (E.g., call with arg "rpc"
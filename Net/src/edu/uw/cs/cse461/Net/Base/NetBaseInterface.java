@@ -33,6 +33,7 @@ public interface NetBaseInterface {
 	public String version();        // Version number of assignment software
 	public String myIP();			// Returns IP address of the host
 	public long now();              // Returns current Unix time (seconds since 1/1/1970).
+	public NetScheduler scheduler(); // Runs tasks after a delay, or periodically, on threads shared by all services
 	
 	// loadable service methods
 	public List<String> loadedServiceNames();                  // Names of all currently loaded services
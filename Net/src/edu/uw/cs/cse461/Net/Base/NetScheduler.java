@@ -0,0 +1,164 @@
+package edu.uw.cs.cse461.Net.Base;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Runs tasks after a delay, or periodically, for all the loaded services.  NetBase makes one
+ * at init() and shuts it down after the services; get it with NetBase.theNetBase().scheduler().
+ * <p>
+ * Unlike a java.util.Timer, a task that throws doesn't stop anything but itself: the exception is
+ * logged, and a periodic task keeps running.  A task that runs long holds up only one of the
+ * scheduler's threads.  A task whose ScheduledFuture is cancelled never runs, and is cleared out
+ * of the queue within PURGE_PERIOD.
+ * <p>
+ * Tasks share a few threads, so they must be short and must not block.  Work that waits on the
+ * network belongs on a service's own thread or executor, which a task can hand it to.
+ * <p>
+ * The scheduler counts the tasks scheduled, those still waiting, those that started more than
+ * a set time after they were due, and those that threw.  Late tasks mean the threads are busy.
+ */
+public class NetScheduler {
+	private static final String TAG="NetScheduler";
+	private static final long PURGE_PERIOD = 10000;   // millis between sweeps of cancelled tasks out of the queue
+
+	private final ScheduledThreadPoolExecutor mExecutor;
+	private final long mLateThreshold;      // millis past due that makes a run late
+	private final AtomicLong mScheduled = new AtomicLong();
+	private final AtomicLong mRuns = new AtomicLong();
+	private final AtomicLong mLate = new AtomicLong();
+	private final AtomicLong mFailed = new AtomicLong();
+	private final AtomicLong mMaxLateness = new AtomicLong();   // millis
+
+	/**
+	 * @param nThreads The number of threads that run tasks
+	 * @param lateThreshold How long after it's due a task can start without being counted late, in millis
+	 */
+	public NetScheduler(int nThreads, long lateThreshold) {
+		mLateThreshold = lateThreshold;
+		final AtomicInteger nextThread = new AtomicInteger(1);
+		mExecutor = new ScheduledThreadPoolExecutor(nThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				// daemons, so that they never keep the app from terminating
+				Thread t = new Thread(r, "NetBase scheduler " + nextThread.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		mExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		mExecutor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+		// a cancelled task stays queued until its time comes (setRemoveOnCancelPolicy() is missing
+		// before Android API 21), so long-delayed ones that get cancelled are swept out now and then
+		mExecutor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				mExecutor.purge();
+			}
+		}, PURGE_PERIOD, PURGE_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs task once, after delay millis.
+	 * @throws RejectedExecutionException The scheduler has been shut down
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delay) {
+		mScheduled.incrementAndGet();
+		return mExecutor.schedule(new Task(task, delay, 0), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs task every period millis, starting after initialDelay millis, until the returned
+	 * future is cancelled.  If a run takes longer than the period, the next starts late; runs
+	 * never overlap.
+	 * @throws RejectedExecutionException The scheduler has been shut down
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+		mScheduled.incrementAndGet();
+		return mExecutor.scheduleAtFixedRate(new Task(task, initialDelay, period), initialDelay, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Drops the tasks not yet run, and interrupts those running.
+	 */
+	public void shutdown() {
+		mExecutor.shutdownNow();
+	}
+
+	public boolean isShutdown() {
+		return mExecutor.isShutdown();
+	}
+
+	/**
+	 * The number of tasks scheduled so far, periodic tasks counting once.
+	 */
+	public long scheduled() {
+		return mScheduled.get();
+	}
+
+	/**
+	 * The number of tasks waiting to run, including periodic tasks between runs.  Cancelled tasks
+	 * count until they're purged.
+	 */
+	public int pending() {
+		return Math.max(mExecutor.getQueue().size() - 1, 0);   // not counting the purge task
+	}
+
+	/**
+	 * The number of runs that started more than the late threshold after they were due.
+	 */
+	public long late() {
+		return mLate.get();
+	}
+
+	/**
+	 * The number of runs that threw.
+	 */
+	public long failed() {
+		return mFailed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "scheduled: " + mScheduled.get() + "  pending: " + pending() + "  runs: " + mRuns.get() +
+				"  late: " + mLate.get() + " (worst " + mMaxLateness.get() + "ms)  failed: " + mFailed.get();
+	}
+
+	/**
+	 * Wraps a task to time its runs, and to keep what it throws from cancelling it.
+	 */
+	private class Task implements Runnable {
+		private final Runnable mTask;
+		private final long mPeriod;     // millis; 0 if the task runs once
+		private long mDueAt;            // when the next run should start, in millis
+
+		Task(Runnable task, long delay, long period) {
+			mTask = task;
+			mPeriod = period;
+			mDueAt = System.currentTimeMillis() + delay;
+		}
+
+		@Override
+		public void run() {
+			long lateness = System.currentTimeMillis() - mDueAt;
+			mDueAt += mPeriod;
+			mRuns.incrementAndGet();
+			if(lateness > mLateThreshold) {
+				mLate.incrementAndGet();
+				long max;
+				while(lateness > (max = mMaxLateness.get()) && !mMaxLateness.compareAndSet(max, lateness)) ;
+			}
+			try {
+				mTask.run();
+			} catch (Throwable e) {
+				mFailed.incrementAndGet();
+				Log.e(TAG, "Scheduled task " + mTask.getClass().getName() + " threw " + e);
+			}
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package edu.uw.cs.cse461.Net.DDNS;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.json.JSONException;
@@ -17,7 +18,7 @@ import org.json.JSONObject;
 public class DDNSException extends Exception {
 	
 	public DDNSErrorCode errorCode;
-	protected List<String> args;
+	protected List<String> args = Collections.emptyList();   // the names the exception is about; none for a runtime exception
 	
 	// My code has six subclasses of DDNSException, so I left them in 
 	// this skeleton code.
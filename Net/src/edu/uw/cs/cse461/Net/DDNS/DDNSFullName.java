@@ -1,5 +1,8 @@
 package edu.uw.cs.cse461.Net.DDNS;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Try to keep straight when we have a fully qualified name, and when we may not,
  * using the compiler's type checking system.
@@ -11,14 +14,43 @@ package edu.uw.cs.cse461.Net.DDNS;
  * <br>Example: FullName("a.b.c.") is "a.b.c.".
  * <br>Example: FullName(".a.b.c.") is "a.b.c.".
  * <br>Example: FullName(".") is "".
+ * <p>
+ * Names are cheap to walk.  A name's ancestors are suffixes of its text, so parent() returns
+ * a view of the same string starting at the next label, and remembers it: walking up
+ * a name a second time allocates nothing.  The hash is computed once, and comparisons work on
+ * the shared text directly.  Names that are looked up over and over can be shared with intern(),
+ * so their cached ancestors and hashes are reused too.  FullNames are immutable.
  * @author zahorjan
  *
  */
 public class DDNSFullName implements DDNSFullNameInterface {
 	public static final char NAMESEP = '.';
 	public static final DDNSFullName ROOTNAME = new DDNSFullName("");
-	
-	private String delegate;
+
+	private static final int INTERN_CACHE_SIZE = 4096;   // names; the cache is emptied when it fills
+	private static final Map<String, DDNSFullName> mInternCache = new ConcurrentHashMap<String, DDNSFullName>();
+
+	private final String mText;    // the text this name is a suffix of
+	private final int mStart;      // where this name starts in mText
+	private String mString;        // this name's own string, made when first needed
+	private int mHash;             // 0 until computed
+	private DDNSFullName mParent;  // made when first needed
+
+	/**
+	 * Returns a FullName for name, shared with other callers asking for the same string.
+	 * Use it for names that are resolved often.
+	 */
+	public static DDNSFullName intern(String name) {
+		if ( name == null ) return ROOTNAME;
+		DDNSFullName result = mInternCache.get(name);
+		if ( result == null ) {
+			if ( mInternCache.size() >= INTERN_CACHE_SIZE ) mInternCache.clear();
+			result = new DDNSFullName(name);
+			mInternCache.put(name, result);
+		}
+		return result;
+	}
+
 	/**
 	 * Deals with optional trailing '.', by applying one if needed.  The root name, "", never has a dot.
 	 * All other names are of form "a.b.c.".
@@ -26,87 +58,143 @@ public class DDNSFullName implements DDNSFullNameInterface {
 	 * @return
 	 */
 	public DDNSFullName(String name) {
-		delegate = name;
+		String delegate = name;
 		if ( delegate == null ) delegate = "";
 		else if ( delegate.isEmpty() || delegate.equals(".")) delegate = "";
 		else {
 			if ( delegate.startsWith(".") ) delegate = delegate.substring(1);
 			if ( !delegate.endsWith(".") ) delegate = delegate + ".";
 		}
+		mText = delegate;
+		mStart = 0;
+		mString = delegate;
+	}
+
+	// the suffix of text starting at start, which must be the start of a label (or text.length(), for the root)
+	private DDNSFullName(String text, int start) {
+		mText = text;
+		mStart = start;
 	}
+
+	private int length() {
+		return mText.length() - mStart;
+	}
+
 	/* (non-Javadoc)
 	 * @see edu.uw.cs.cse461.Net.DDNS.DDNSFullNameInterface#parent()
 	 */
 	@Override
 	public DDNSFullNameInterface parent() {
-		if ( delegate == null ) return null;
-		int index = delegate.indexOf(NAMESEP);
-		if ( index < 0 || index >= delegate.length()-1  ) return new DDNSFullName("");
-		return new DDNSFullName(delegate.substring(index+1));
+		DDNSFullName parent = mParent;
+		if ( parent == null ) {
+			int index = mText.indexOf(NAMESEP, mStart);
+			if ( index < 0 || index >= mText.length()-1 ) parent = ROOTNAME;
+			else parent = new DDNSFullName(mText, index+1);
+			mParent = parent;
+		}
+		return parent;
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see edu.uw.cs.cse461.Net.DDNS.DDNSFullNameInterface#isChildOf(edu.uw.cs.cse461.Net.DDNS.DDNSFullNameInterface)
 	 */
 	@Override
 	public boolean isChildOf(DDNSFullNameInterface parent) {
-		if (delegate.length() < parent.toString().length()+2 ) return false;
-		if ( !delegate.endsWith(parent.toString()) ) return false;
-		String child = delegate.substring(0, delegate.length()-parent.toString().length());
-		if ( !child.endsWith(".") || child.equals(".") ) return false;
-		child = child.substring(0,child.length()-1);
-		if ( child.indexOf('.') >= 0 ) return false; // it's an ancestor, but not a child
-		return true;
+		return length() > 0 && parent().equals(parent);
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see edu.uw.cs.cse461.Net.DDNS.DDNSFullNameInterface#isDescendantOf(edu.uw.cs.cse461.Net.DDNS.DDNSFullName)
 	 */
 	@Override
 	public boolean isDescendantOf(DDNSFullName parent) {
-		return delegate.endsWith(parent.toString())
-				&& ( delegate.length() == parent.delegate.length() || delegate.charAt( delegate.length() - parent.delegate.length() - 1) == '.');
+		int len = length();
+		int parentLen = parent.length();
+		if ( len < parentLen ) return false;
+		if ( !mText.regionMatches(mStart + len - parentLen, parent.mText, parent.mStart, parentLen) ) return false;
+		return len == parentLen || mText.charAt(mStart + len - parentLen - 1) == NAMESEP;
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see edu.uw.cs.cse461.Net.DDNS.DDNSFullNameInterface#nextAncestor(edu.uw.cs.cse461.Net.DDNS.DDNSFullNameInterface)
 	 */
 	@Override
 	public DDNSFullName nextAncestor(DDNSFullNameInterface descendant) {
+		if ( descendant instanceof DDNSFullName ) {
+			// walk up the descendant's (cached) ancestors to the one just below this name
+			int len = length();
+			DDNSFullName ancestor = (DDNSFullName)descendant;
+			while ( ancestor.length() > len ) {
+				DDNSFullName parent = (DDNSFullName)ancestor.parent();
+				if ( parent.length() <= len ) return ancestor;
+				ancestor = parent;
+			}
+		}
 		int lastDelim = descendant.toString().lastIndexOf(NAMESEP, descendant.toString().length() - toString().length() - 2);
 		return new DDNSFullName(descendant.toString().substring(lastDelim+1));
 	}
-	
+
+	/**
+	 * Returns this name with its ancestor replaced by another name.  For example, replacing
+	 * "b.c." in "a.b.c." with "x.y." gives "a.x.y.".  Used to follow CNAMEs.
+	 * @throws IllegalArgumentException ancestor isn't an ancestor of this name
+	 */
+	public DDNSFullName replaceAncestor(DDNSFullName ancestor, DDNSFullNameInterface replacement) {
+		if ( !isDescendantOf(ancestor) ) throw new IllegalArgumentException(ancestor + " is not an ancestor of " + this);
+		String prefix = mText.substring(mStart, mText.length() - ancestor.length());
+		return new DDNSFullName(prefix + replacement.toString());
+	}
+
 	/* (non-Javadoc)
 	 * @see edu.uw.cs.cse461.Net.DDNS.DDNSFullNameInterface#equals(java.lang.Object)
 	 */
 	@Override
 	public boolean equals(Object other) {
-		return delegate != null && delegate.equals(((DDNSFullNameInterface)other).toString());
+		if ( other == this ) return true;
+		if ( other instanceof DDNSFullName ) {
+			DDNSFullName otherName = (DDNSFullName)other;
+			int len = length();
+			return len == otherName.length() &&
+					( mHash == 0 || otherName.mHash == 0 || mHash == otherName.mHash ) &&
+					mText.regionMatches(mStart, otherName.mText, otherName.mStart, len);
+		}
+		if ( !(other instanceof DDNSFullNameInterface) ) return false;
+		return toString().equals(other.toString());
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see edu.uw.cs.cse461.Net.DDNS.DDNSFullNameInterface#compareTo(edu.uw.cs.cse461.Net.DDNS.DDNSFullName)
 	 */
 	@Override
 	public int compareTo(DDNSFullNameInterface other ) {
 		if ( other == null ) return 1;
-		return delegate.compareTo( other.toString() );
+		return toString().compareTo( other.toString() );
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see edu.uw.cs.cse461.Net.DDNS.DDNSFullNameInterface#hashCode()
 	 */
 	@Override
 	public int hashCode() {
-		return delegate.hashCode();
+		// the same as toString().hashCode(), without making the string
+		int h = mHash;
+		if ( h == 0 ) {
+			for ( int i=mStart; i<mText.length(); i++ ) h = 31*h + mText.charAt(i);
+			mHash = h;
+		}
+		return h;
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see edu.uw.cs.cse461.Net.DDNS.DDNSFullNameInterface#toString()
 	 */
 	@Override
 	public String toString() {
-		return delegate;
+		String s = mString;
+		if ( s == null ) {
+			s = mText.substring(mStart);
+			mString = s;
+		}
+		return s;
 	}
 }
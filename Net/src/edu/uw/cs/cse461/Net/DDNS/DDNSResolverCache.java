@@ -0,0 +1,263 @@
+package edu.uw.cs.cse461.Net.DDNS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.uw.cs.cse461.Net.Base.NetScheduler;
+
+/**
+ * The resolver's cache of answers from name servers, by name.  It's bounded in two ways:
+ * <ul>
+ * <li>Each entry lives for a fixed time, the TTL, after which it's no longer returned.
+ * <li>There are at most a fixed number of entries.  Adding one to a full cache evicts
+ *     the least recently used.
+ * </ul>
+ * The entries are split among segments by hash, each an LRU list with its own lock, so
+ * concurrent lookups of different names rarely wait for each other.  The LRU order, and the
+ * size bound, are per segment; a small cache has just one.
+ * <p>
+ * Expired entries are removed in batches by a hashed timing wheel, like the name server's:
+ * each slot holds the entries that expire during one tick, and a single scheduled task visits a slot
+ * per tick.  An entry found expired before its slot comes around is removed by the lookup.
+ * <p>
+ * A cache can also refresh hot entries ahead of time: when the wheel is a set time short of
+ * an entry's slot, and the entry has been looked up at least a set number of times, the cache
+ * asks its Refresher to look the name up again.  The new answer replaces the entry before it
+ * expires, so callers of a busy name don't see it miss.
+ */
+class DDNSResolverCache<V> {
+	/**
+	 * Looks a name up again, and puts the answer in the cache.  Called on one of the scheduler's
+	 * threads, which every service shares, so it must not block.
+	 */
+	interface Refresher {
+		void refresh(String name);
+	}
+
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_SEGMENT_SIZE = 64;   // smaller caches have fewer segments, so LRU order is kept across more entries
+
+	private final long mTTL;                   // millis
+	private final List<Segment<V>> mSegments;
+	private final long mTick;                  // millis
+	private final List<Set<CacheEntry<V>>> mSlots;
+	private long mNextTick;                    // the next tick to process, as time/mTick
+	private final ScheduledFuture<?> mWheelTask;
+	private final Refresher mRefresher;        // null if entries aren't refreshed
+	private final int mRefreshMinHits;         // lookups that make an entry worth refreshing
+	private final long mRefreshAheadTicks;     // how long before its slot an entry is refreshed
+
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+	private final AtomicLong mEvictions = new AtomicLong();
+	private final AtomicLong mExpirations = new AtomicLong();
+	private final AtomicLong mRefreshes = new AtomicLong();
+	private final AtomicLong mRefreshedHits = new AtomicLong();   // hits on entries put there by a refresh
+
+	/**
+	 * @param maxEntries The most entries the cache holds
+	 * @param ttl How long an entry is returned after it's added, in millis
+	 * @param tick How often expired entries are removed, in millis
+	 * @param scheduler The scheduler that runs the removals
+	 */
+	DDNSResolverCache(int maxEntries, long ttl, long tick, NetScheduler scheduler) {
+		this(maxEntries, ttl, tick, scheduler, null, 0, 0);
+	}
+
+	/**
+	 * @param refresher Called to refresh hot entries
+	 * @param minHits The number of lookups that makes an entry hot
+	 * @param refreshAhead How long before an entry expires it's refreshed, in millis
+	 */
+	DDNSResolverCache(int maxEntries, long ttl, long tick, NetScheduler scheduler, Refresher refresher, int minHits, long refreshAhead) {
+		mTTL = ttl;
+		mRefresher = refresher;
+		mRefreshMinHits = minHits;
+		int nSegments = Math.max(1, Math.min(MAX_SEGMENTS, maxEntries / MIN_SEGMENT_SIZE));
+		mSegments = new ArrayList<Segment<V>>(nSegments);
+		int segmentSize = (maxEntries + nSegments - 1) / nSegments;
+		for(int i = 0; i < nSegments; i++) mSegments.add(new Segment<V>(segmentSize, mEvictions));
+
+		mTick = tick;
+		int nSlots = (int)((ttl + tick - 1) / tick) + 2;
+		mSlots = new ArrayList<Set<CacheEntry<V>>>(nSlots);
+		for(int i = 0; i < nSlots; i++)
+			mSlots.add(Collections.newSetFromMap(new ConcurrentHashMap<CacheEntry<V>, Boolean>()));
+		mRefreshAheadTicks = Math.max(1, Math.min(nSlots - 2, (refreshAhead + tick - 1) / tick));
+		mNextTick = System.currentTimeMillis() / mTick;
+		mWheelTask = scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				advance(System.currentTimeMillis());
+			}
+		}, mTick, mTick);
+	}
+
+	/**
+	 * Returns the value cached for name, or null if there isn't one or it has expired.
+	 */
+	V get(String name) {
+		Segment<V> segment = segmentFor(name);
+		CacheEntry<V> entry;
+		synchronized(segment) {
+			entry = segment.get(name);
+			if(entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+				segment.remove(name).removed = true;
+				mExpirations.incrementAndGet();
+				entry = null;
+			}
+			if(entry != null) entry.hits++;
+		}
+		if(entry == null) {
+			mMisses.incrementAndGet();
+			return null;
+		}
+		mHits.incrementAndGet();
+		if(entry.refreshed) mRefreshedHits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Caches value for name, for the TTL, replacing any value cached for it.
+	 */
+	void put(String name, V value) {
+		CacheEntry<V> entry = new CacheEntry<V>(name, value, System.currentTimeMillis() + mTTL);
+		Segment<V> segment = segmentFor(name);
+		synchronized(segment) {
+			CacheEntry<V> old = segment.put(name, entry);
+			if(old != null) {
+				old.removed = true;
+				entry.refreshed = old.refreshing;
+			}
+		}
+		long tick = (entry.expiresAt + mTick - 1) / mTick;
+		mSlots.get((int)(tick % mSlots.size())).add(entry);
+	}
+
+	void remove(String name) {
+		Segment<V> segment = segmentFor(name);
+		synchronized(segment) {
+			CacheEntry<V> old = segment.remove(name);
+			if(old != null) old.removed = true;
+		}
+	}
+
+	int size() {
+		int size = 0;
+		for(Segment<V> segment : mSegments) {
+			synchronized(segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Stops removing expired entries.
+	 */
+	void cancel() {
+		mWheelTask.cancel(false);
+	}
+
+	@Override
+	public String toString() {
+		String stats = "cache entries: " + size() + "  hits: " + mHits.get() + "  misses: " + mMisses.get() +
+				"  evictions: " + mEvictions.get() + "  expirations: " + mExpirations.get();
+		if(mRefresher == null) return stats;
+		long hits = mHits.get();
+		long refreshedHits = mRefreshedHits.get();
+		return stats + "  refreshes: " + mRefreshes.get() + "  hits on refreshed entries: " + refreshedHits +
+				" (" + (hits == 0 ? 0 : 100*refreshedHits/hits) + "%)";
+	}
+
+	private Segment<V> segmentFor(String name) {
+		int h = name.hashCode();
+		h ^= (h >>> 16);
+		return mSegments.get((h & 0x7fffffff) % mSegments.size());
+	}
+
+	// visits the slots of all ticks that have passed, removing their entries
+	private void advance(long now) {
+		long lastTick = now / mTick;
+		// if we've fallen a whole revolution behind, every slot is due: visit each once
+		if(lastTick - mNextTick >= mSlots.size()) mNextTick = lastTick - mSlots.size() + 1;
+		long firstTick = mNextTick;
+		for( ; mNextTick <= lastTick; mNextTick++) {
+			Iterator<CacheEntry<V>> it = mSlots.get((int)(mNextTick % mSlots.size())).iterator();
+			while(it.hasNext()) {
+				CacheEntry<V> entry = it.next();
+				// only when the wheel has fallen behind can an entry be due in a later revolution
+				if(entry.expiresAt > now) continue;
+				it.remove();
+				Segment<V> segment = segmentFor(entry.name);
+				synchronized(segment) {
+					// unless it was replaced, evicted or found expired already
+					if(!entry.removed) {
+						segment.remove(entry.name);
+						entry.removed = true;
+						mExpirations.incrementAndGet();
+					}
+				}
+			}
+		}
+		// each tick processed moves the refresh horizon one tick; scan every slot it passed over
+		if(mRefresher != null) {
+			for(long tick = firstTick; tick <= lastTick; tick++) refreshAhead(tick + mRefreshAheadTicks);
+		}
+	}
+
+	// refreshes the hot entries that expire during the given tick
+	private void refreshAhead(long tick) {
+		for(CacheEntry<V> entry : mSlots.get((int)(tick % mSlots.size()))) {
+			if(entry.removed || entry.refreshing || entry.hits < mRefreshMinHits) continue;
+			if((entry.expiresAt + mTick - 1) / mTick != tick) continue;
+			entry.refreshing = true;
+			mRefreshes.incrementAndGet();
+			mRefresher.refresh(entry.name);
+		}
+	}
+
+	private static class CacheEntry<V> {
+		final String name;
+		final V value;
+		final long expiresAt;
+		volatile int hits = 0;               // changed only with the segment locked
+		volatile boolean removed = false;    // replaced, evicted or expired
+		volatile boolean refreshing = false;
+		boolean refreshed = false;           // put there by a refresh
+		CacheEntry(String name, V value, long expiresAt) {
+			this.name = name;
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// one segment's entries, least recently used first
+	private static class Segment<V> extends LinkedHashMap<String, CacheEntry<V>> {
+		private static final long serialVersionUID = 1L;
+		private final int mMaxEntries;
+		private final AtomicLong mEvictions;
+
+		Segment(int maxEntries, AtomicLong evictions) {
+			super(16, 0.75f, true);
+			mMaxEntries = maxEntries;
+			mEvictions = evictions;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CacheEntry<V>> eldest) {
+			if(size() <= mMaxEntries) return false;
+			eldest.getValue().removed = true;
+			mEvictions.incrementAndGet();
+			return true;
+		}
+	}
+}
@@ -1,21 +1,46 @@
 package edu.uw.cs.cse461.Net.DDNS;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.HTTP.HTTPProviderInterface;
 import edu.uw.cs.cse461.Net.Base.NetBase;
 import edu.uw.cs.cse461.Net.Base.NetLoadable.NetLoadableService;
+import edu.uw.cs.cse461.Net.Base.NetScheduler;
 import edu.uw.cs.cse461.Net.DDNS.DDNSRRecord.ARecord;
 import edu.uw.cs.cse461.Net.DDNS.DDNSRRecord.SOARecord;
 import edu.uw.cs.cse461.Net.RPC.RPCCall;
@@ -36,11 +61,42 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 	private String rootServerIP;				/* the IP of the root server to contact when resolving names */
 	private int rootPort;						/* the port of the root server to contact when resolving names */
 	
+	private boolean recursive;					/* whether to ask servers to resolve names recursively */
+	
+	private boolean useUDP;						/* whether to try resolves over UDP before RPC */
+	private int udpTimeout;						/* millis to wait for a UDP reply before using RPC */
+	private Map<String, Long> udpDownUntil = new ConcurrentHashMap<String, Long>();	/* "ip:port" of servers that didn't answer over UDP -> when to try again */
+	private Random udpIds = new SecureRandom();	/* matches UDP replies to requests; unguessable, so replies can't be forged */
+	
+	private boolean spreadQueries;				/* whether to send queries to zones' secondaries too */
+	private Map<String, String[]> zoneServers = new ConcurrentHashMap<String, String[]>();	/* "ip:port" of a server -> all its zone's servers, if it has secondaries */
+	private Map<String, Long> serverDownUntil = new ConcurrentHashMap<String, Long>();	/* "ip:port" of zone servers that didn't answer -> when to try them first again */
+	private AtomicInteger nextServer = new AtomicInteger();	/* takes a zone's servers in turn */
+	
+	private long registerRetry;					/* millis before the first retry of a failed register, before jitter */
+	private long registerRetryMax;				/* the longest wait between retries */
+	private Random jitter = new Random();		/* spreads out renewals and retries */
+	
+	private ExecutorService refreshExecutor;	/* looks hot names up again before their cache entries expire; made when first needed */
+	private ExecutorService registerExecutor;	/* sends renewals and retries handed off by scheduled tasks; made when first needed */
+	private Queue<UDPChannel> udpChannels = new ConcurrentLinkedQueue<UDPChannel>();	/* idle sockets for UDP resolves */
+	
 	boolean hasCaching;							/* whether or not caching has been turned on */
 	int cacheTimeout;							/* how long to wait before booting elements out of the cache */
-	private Map<String, CacheRecord> cache;		/* a cache of resolved names -> IP/ports, an invalid/unregistered name maps to NULL */
+	private DDNSResolverCache<CacheRecord> cache;	/* resolved names -> IP/ports or the failure; null if caching is off */
+	private Map<String, CacheRecord> localRecords = new ConcurrentHashMap<String, CacheRecord>();	/* names registered from here -> their records */
+	private DDNSResolverCache<String> referralCache;	/* NS names -> the "ip:port" of their zone's server; null if not kept */
+	private DDNSResolverCache<String> cnameCache;		/* CNAME names -> their aliases; null if not kept */
+	private ConcurrentMap<String, FutureTask<ARecord>> inFlightLookups = new ConcurrentHashMap<String, FutureTask<ARecord>>();	/* names being resolved -> the lookup */
+	
+	private NetScheduler scheduler;				/* runs cache expiry, renewals and retries; shared with the other services */
+	private volatile boolean shuttingDown = false;	/* set once shutdown() starts, so no more tasks are scheduled */
 	
-	private Timer timer;						/* timer for scheduling events */
+	private static final int MAX_BATCH = 256;	/* names per resolvebatch call */
+	private static final long UDP_RETRY_INTERVAL = 60000;	/* millis before trying UDP again with a server that didn't answer */
+	private static final int UDP_REQUEST_SIZE = 512;	/* bytes requests are padded to; the server's reply can't be longer */
+	private static final long SERVER_RETRY_INTERVAL = 10000;	/* millis before a zone server that didn't answer is tried first again */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 
 	public DDNSResolverService() throws DDNSException {
 		super("ddnsresolver", true);
@@ -66,10 +122,37 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 			throw new DDNSException("No ddns.cachettl entry in config file.");
 		}
 		cacheTimeout = Integer.parseInt(cachettl);
+		
+		// for scheduling new tasks
+		scheduler = NetBase.theNetBase().scheduler();
+		registerRetry = config.getAsInt("ddnsresolver.registerretry", 500, 1, TAG);
+		registerRetryMax = Math.max(registerRetry, config.getAsInt("ddnsresolver.registerretrymax", 30000, 1, TAG));
+		
 		if (cacheTimeout > 0) {
 			hasCaching = true;
+			// names looked up often are looked up again before they expire, in the background
+			int refreshHits = config.getAsInt("ddnsresolver.refreshhits", 3, 0, TAG);
+			DDNSResolverCache.Refresher refresher = refreshHits == 0 ? null : new DDNSResolverCache.Refresher() {
+				public void refresh(String name) {
+					refreshAhead(name);
+				}
+			};
+			cache = new DDNSResolverCache<CacheRecord>(config.getAsInt("ddnsresolver.cachesize", 10000, 1, TAG), cacheTimeout,
+														config.getAsInt("ddnsresolver.cachetick", 500, 10, TAG), scheduler,
+														refresher, refreshHits, config.getAsInt("ddnsresolver.refreshahead", cacheTimeout/5, 0, TAG));
+		}
+		
+		// delegations and aliases found along the way, so lookups of names under them start lower in the tree
+		int referralTTL = config.getAsInt("ddnsresolver.referralttl", cacheTimeout, 0, TAG);
+		if (referralTTL > 0) {
+			referralCache = new DDNSResolverCache<String>(config.getAsInt("ddnsresolver.referralcachesize", 1000, 1, TAG), referralTTL,
+															config.getAsInt("ddnsresolver.cachetick", 500, 10, TAG), scheduler);
+		}
+		int cnameTTL = config.getAsInt("ddnsresolver.cnamettl", cacheTimeout, 0, TAG);
+		if (cnameTTL > 0) {
+			cnameCache = new DDNSResolverCache<String>(config.getAsInt("ddnsresolver.referralcachesize", 1000, 1, TAG), cnameTTL,
+														config.getAsInt("ddnsresolver.cachetick", 500, 10, TAG), scheduler);
 		}
-		cache = new HashMap<String, CacheRecord>();
 		
 		// setup password
 		password = config.getProperty("ddnsresolver.password");
@@ -84,8 +167,15 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 		}
 		maxResolveAttempts = Integer.parseInt(max);
 		
-		// for scheduling new tasks
-		timer = new Timer();
+		// ask servers that can to do the whole resolution, so a lookup is one call
+		recursive = config.getAsInt("ddnsresolver.recursive", 0, TAG) != 0;
+		
+		// a resolve in a datagram is one round trip; over RPC it's a connection and a handshake too
+		useUDP = config.getAsInt("ddnsresolver.udp", 1, TAG) != 0;
+		udpTimeout = config.getAsInt("ddnsresolver.udptimeout", 200, 1, TAG);
+		
+		// a zone with secondaries lists them in its answers; queries for it are then spread across them all
+		spreadQueries = config.getAsInt("ddnsresolver.spread", 1, TAG) != 0;
 		
 		// finally - REGISTER OURSELVES
 		myName = config.getProperty("net.hostname");
@@ -102,8 +192,19 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 	 */
 	@Override
 	public void shutdown() {
-		// stop any scheduled TIMER events
-		timer.cancel();
+		// stop our scheduled tasks; the scheduler is shared, and NetBase shuts it down
+		shuttingDown = true;
+		for (CacheRecord record : localRecords.values()) record.cancelRegistration();
+		if (cache != null) cache.cancel();
+		if (referralCache != null) referralCache.cancel();
+		if (cnameCache != null) cnameCache.cancel();
+		synchronized (this) {
+			if (refreshExecutor != null) refreshExecutor.shutdownNow();
+			if (registerExecutor != null) registerExecutor.shutdownNow();
+		}
+		
+		UDPChannel channel;
+		while ((channel = udpChannels.poll()) != null) channel.socket.close();
 		
 		// UNregister ourselves
 		try {
@@ -133,23 +234,19 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 			// ....
 			sb.append("You haven't updated DDNSResolverServer.httpServer()");
 		}
-		// add any additional information you want here
+		sb.append(dumpState()).append("\n");
 		return sb.toString();
 	}
 
 	/**
-	 * Unregisters a name.  
+	 * Unregisters a name.  If the server has a transient failure, the unregister is retried
+	 * in the background, as register() does.
 	 * @param name
 	 * @throws DDNSException
 	 */
 	@Override
 	public void unregister(DDNSFullNameInterface name) throws DDNSException, JSONException {
 		// record in cache that there is no address associated with this name anymore
-		synchronized(cache) {
-			if (cache.containsKey(name.toString())) {
-				cache.get(name.toString()).cancelRegistration();
-			}
-		}
 		cachePutLocal(name.toString(), new CacheRecord(new DDNSException.DDNSNoAddressException(name)));
 		
 		// create JSON object to send to RPC
@@ -176,25 +273,10 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 				case 3:
 					throw new DDNSException.DDNSAuthorizationException(name);
 				case 4: 
-					long start = System.currentTimeMillis();
-					long end = start + 10000;	// ten seconds
-					int sleeptime = 5;
-					while (System.currentTimeMillis() < end && response.get("resulttype").equals("ddnsexception")) {
-						// sleep for x ms
-						try {
-							Thread.sleep(sleeptime);
-						} catch (InterruptedException e) {
-							// do nothing
-						}
-						
-						// try again				
-						response = resolverHelper(name.toString(), "unregister", rootServerIP, rootPort, unregisterObj, 0);
-						sleeptime *= 2;	// backoff
-					}
-					if (response.get("resulttype").equals("ddnsexception")) { // still an error
-						throw new DDNSException.DDNSRuntimeException(response.getString("message"));
-					}
-					break;
+					// the server may recover: try again later, without holding up the caller
+					Log.w(TAG, "unregister of " + name + " failed, will retry: " + response.getString("message"));
+					retryUnregister(name, unregisterObj, registerRetry);
+					return;
 				case 5: 
 					throw new DDNSException.DDNSTTLExpiredException(name);
 				case 6:
@@ -215,6 +297,12 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 	/**
 	 * Registers a name as being on this host (IP) at the given port.
 	 * If the name already exists, update its address mapping.  If it doesn't exist, create it (as an ARecord).
+	 * <p>
+	 * Once registered, the name is kept registered in the background, so registering it again at
+	 * the same port returns right away.  If the server has a transient failure, or can't be reached,
+	 * the registration is retried in the background with jittered exponential backoff
+	 * (ddnsresolver.registerretry to ddnsresolver.registerretrymax millis); a server that can't
+	 * be reached is still reported to the caller.
 	 * @param name
 	 * @param ip
 	 * @param port
@@ -222,10 +310,46 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 	 */
 	@Override
 	public void register(DDNSFullNameInterface name, int port) throws DDNSException {
+		CacheRecord current = localRecords.get(name.toString());
+		if (current != null && current.isRegistrationOf(port)) {
+			return;
+		}
+		
 		// want to record in cache even if it fails
-		ARecord record = new ARecord(myIP, port);
-		CacheRecord cacherecord = new CacheRecord(record, new RegisterTask(name, port), true);
-		cachePutLocal(name.toString(), cacherecord);
+		Registration registration = new Registration(name, port);
+		cachePutLocal(name.toString(), new CacheRecord(new ARecord(myIP, port), registration, true));
+		sendRegistration(registration);
+	}
+	
+	/* Sends the unregister call again after about delay millis, and keeps trying, backing off,
+	 * until the server's failure goes away, or the name is registered again.
+	 */
+	private void retryUnregister(final DDNSFullNameInterface name, final JSONObject unregisterObj, final long delay) {
+		scheduleTask(inBackground(new Runnable() {
+			@Override
+			public void run() {
+				CacheRecord current = localRecords.get(name.toString());
+				if (current != null && current.isRegistered()) return;
+				try {
+					JSONObject response = resolverHelper(name.toString(), "unregister", rootServerIP, rootPort, unregisterObj, 0);
+					if (response.optInt("exceptionnum") != 4) return;
+				} catch (IOException e) {
+					// try again
+				} catch (Exception e) {
+					Log.w(TAG, "unregister of " + name + " failed: " + e.getMessage());
+					return;
+				}
+				retryUnregister(name, unregisterObj, Math.min(2*delay, registerRetryMax));
+			}
+		}), jittered(delay));
+	}
+	
+	/* Sends a register call for the registration, and schedules what's next: its renewal, or
+	 * a retry if the call failed for a reason that may go away.
+	 */
+	private void sendRegistration(Registration registration) throws DDNSException {
+		DDNSFullNameInterface name = registration.name;
+		int port = registration.port;
 		
 		// create JSON object to send to RPC
 		JSONObject registerObj = new JSONObject();
@@ -252,78 +376,123 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 					cachePutLocal(name.toString(), badrecord2);
 					throw new DDNSException.DDNSNoAddressException(name);
 				case 3:
+					registration.cancel();
 					throw new DDNSException.DDNSAuthorizationException(name);
 				case 4: 
-					long start = System.currentTimeMillis();
-					long end = start + 10000;	// ten seconds
-					int sleeptime = 5;
-					while (System.currentTimeMillis() < end && response.get("resulttype").equals("ddnsexception")) {
-						// sleep for sleeptime ms
-						try {
-							Thread.sleep(sleeptime);
-						} catch (InterruptedException e) {
-							// do nothing
-						}
-						
-						// try again				
-						response = resolverHelper(name.toString(), "register", rootServerIP, rootPort, registerObj, 0);
-						sleeptime *= 2;	// backoff
-					}
-					if (response.get("resulttype").equals("ddnsexception")) { // still an error
-						throw new DDNSException.DDNSRuntimeException(response.getString("message"));
-					}
+					// the server may recover: try again later, without holding up the caller
+					Log.w(TAG, "register of " + name + " failed, will retry: " + response.getString("message"));
+					registration.retry();
 					break;
 				case 5: 
+					registration.cancel();
 					throw new DDNSException.DDNSTTLExpiredException(name);
 				case 6:
+					registration.cancel();
 					throw new DDNSException.DDNSZoneException(name, new DDNSFullName(response.getString("zone")));
 				default:
+					registration.cancel();
 					throw new DDNSException(response.getString("message"));				
 				}
 			} else {													// SUCCESS
 				int timeToLive = 1000*response.getInt("lifetime");		// given in seconds, convert to ms
-				cacherecord.scheduleRegistration(Math.max((90*timeToLive/100),500));	// only wait 90% of timetolive before trying again (or half a second if ttl=0)
+				// renew after 80-90% of timetolive, spread out so many names don't renew together (or half a second if ttl=0)
+				registration.renewIn(Math.max((80 + jitter.nextInt(11))*(long)timeToLive/100, 500));
 			}
 		} catch (JSONException e) {
 			throw new DDNSException("register encountered a JSON exception: " + e.getMessage());
 		} catch (IOException e) {
+			registration.retry();
 			throw new DDNSException("register encountered an IO exception: " + e.getMessage());
 		} 
 	}
 	
 	/**
 	 * Resolves a name to an ARecord containing an address.  Throws an exception if no ARecord w/ address can be found.
+	 * Concurrent calls for a name that isn't cached share a single lookup, and all get its outcome.
 	 * @param name
 	 * @return The ARecord for the name, if one is found
 	 * @throws DDNSException
 	 */
 	@Override
-	public ARecord resolve(String nameStr) throws DDNSException, JSONException {
+	public ARecord resolve(final String nameStr) throws DDNSException, JSONException {
 		// check cache first
-		synchronized (cache) {
-			if (cache.containsKey(nameStr)) {
-				return cache.get(nameStr).getRecord();
-			}
+		CacheRecord cached = cacheGet(nameStr);
+		if (cached != null) {
+			return cached.getRecord();
 		}
 		
+		// one lookup per name at a time: callers that miss while one is under way wait for its answer
+		FutureTask<ARecord> lookup = new FutureTask<ARecord>(new Callable<ARecord>() {
+			public ARecord call() throws Exception {
+				return resolveUncached(nameStr);
+			}
+		});
+		FutureTask<ARecord> inFlight = inFlightLookups.putIfAbsent(nameStr, lookup);
+		if (inFlight == null) {
+			try {
+				lookup.run();
+			} finally {
+				inFlightLookups.remove(nameStr, lookup);
+			}
+			inFlight = lookup;
+		}
+		try {
+			return inFlight.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof DDNSException) throw (DDNSException)cause;
+			if (cause instanceof JSONException) throw (JSONException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new DDNSException.DDNSRuntimeException("resolve of " + nameStr + " failed: " + cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DDNSException.DDNSRuntimeException("interrupted while resolving " + nameStr);
+		}
+	}
+	
+	/* Looks a cached name up again, in the background, so the new answer replaces the cache entry
+	 * before it expires.
+	 */
+	private void refreshAhead(final String nameStr) {
+		synchronized (this) {
+			if (refreshExecutor == null) refreshExecutor = daemonExecutor("DDNS refresh");
+		}
+		try {
+			refreshExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						resolveUncached(nameStr);
+					} catch (Exception e) {
+						// the entry just expires; the next lookup will try again
+						Log.d(TAG, "refresh of " + nameStr + " failed: " + e.getMessage());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// shutting down
+		}
+	}
+	
+	/* Looks up a name that isn't in the cache, and caches the outcome.
+	 */
+	private ARecord resolveUncached(String nameStr) throws DDNSException, JSONException {
 		try {
 			// create JSON object to send to RPC
 			JSONObject resolveObj = new JSONObject();
 			resolveObj.put("name", nameStr);
-			JSONObject response = resolverHelper(nameStr, "resolve", rootServerIP, rootPort, resolveObj, 0);
+			if (recursive) resolveObj.put("recursive", true);
+			JSONObject response = resolveFromClosest(nameStr, "resolve", resolveObj, 0);
 
 			if (response.getString("resulttype").equals("ddnsexception")) {	// FAILURE
 				int exceptiontype = response.getInt("exceptionnum");
 				switch(exceptiontype) {
 				case 1:
 					// record invalid name in cache
-					CacheRecord badrecord1 = new CacheRecord(new DDNSException.DDNSNoSuchNameException(new DDNSFullName(nameStr)), new CacheTask(nameStr));
-					cachePutGlobal(nameStr, badrecord1);
+					cacheFailure(nameStr, exceptiontype);
 					throw new DDNSException.DDNSNoSuchNameException(new DDNSFullName(nameStr));
 				case 2: 
 					// record no address in cache
-					CacheRecord badrecord2 = new CacheRecord(new DDNSException.DDNSNoAddressException(new DDNSFullName(nameStr)), new CacheTask(nameStr));
-					cachePutGlobal(nameStr, badrecord2);
+					cacheFailure(nameStr, exceptiontype);
 					throw new DDNSException.DDNSNoAddressException(new DDNSFullName(nameStr));
 				case 3:
 					throw new DDNSException.DDNSAuthorizationException(new DDNSFullName(nameStr));
@@ -340,7 +509,7 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 						}
 						
 						// try again				
-						response = resolverHelper(nameStr, "resolve", rootServerIP, rootPort, resolveObj, 0);
+						response = resolveFromClosest(nameStr, "resolve", resolveObj, 0);
 						sleeptime *= 2;	// backoff
 					}
 					if (response.get("resulttype").equals("ddnsexception")) { 	// still an error
@@ -353,7 +522,7 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 							SOARecord result = (SOARecord) DDNSRRecord.unmarshall(node);
 							
 							// add to cache
-							CacheRecord crecord = new CacheRecord(result, new CacheTask(nameStr), false);
+							CacheRecord crecord = new CacheRecord(result);
 							cachePutGlobal(nameStr, crecord);
 							
 							return result;
@@ -362,7 +531,7 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 						ARecord result = (ARecord) DDNSRRecord.unmarshall(node);
 						
 						// add to cache
-						CacheRecord crecord = new CacheRecord(result, new CacheTask(nameStr), false);
+						CacheRecord crecord = new CacheRecord(result);
 						cachePutGlobal(nameStr, crecord);
 						
 						return result;
@@ -381,7 +550,7 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 					SOARecord result = (SOARecord) DDNSRRecord.unmarshall(node);
 					
 					// add to cache
-					CacheRecord crecord = new CacheRecord(result, new CacheTask(nameStr), false);
+					CacheRecord crecord = new CacheRecord(result);
 					cachePutGlobal(nameStr, crecord);
 					
 					return result;
@@ -390,7 +559,7 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 				ARecord result = (ARecord) DDNSRRecord.unmarshall(node);
 				
 				// add to cache
-				CacheRecord crecord = new CacheRecord(result, new CacheTask(nameStr), false);
+				CacheRecord crecord = new CacheRecord(result);
 				cachePutGlobal(nameStr, crecord);
 				
 				return result;
@@ -415,137 +584,616 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 			throw new DDNSException.DDNSTTLExpiredException(new DDNSFullName(name));
 		}
 
-		JSONObject response = RPCCall.invoke(serviceIP, servicePort, "ddns", rpccall, obj);
+		JSONObject response = rpccall.equals("resolve") ? resolveCall(serviceIP, servicePort, obj) 
+														: RPCCall.invoke(serviceIP, servicePort, "ddns", rpccall, obj);
 
 		if (response.getString("resulttype").equals("ddnsexception") || response.getBoolean("done")) {
 			return response;
 		}
 		// set up variables for next attempt
-		String newIP;
-		int newPort;
 		JSONObject node = response.getJSONObject("node");
-		String nodeType = node.getString("type");
-		if (nodeType.equals("CNAME")) {
-			String nameToReplace = node.getString("name");
-			String alias = node.getString("alias");
-			name = name.substring(0, name.indexOf(nameToReplace)) + alias;
-			obj.put("name", name);
-			newIP = rootServerIP;
-			newPort = rootPort;
-		} else {
-			newIP = node.getString("ip");
-			newPort = node.getInt("port");
-		}
-		return resolverHelper(name, rpccall, newIP, newPort, obj, attempts+1);
+		cacheReferral(node);
+		if (node.getString("type").equals("CNAME")) {
+			return resolveFromClosest(followCNAME(name, node), rpccall, obj, attempts+1);
+		}
+		return resolverHelper(name, rpccall, node.getString("ip"), node.getInt("port"), obj, attempts+1);
+	}
+	
+	/* Like resolverHelper, but starts at the closest server known for the name, which is the root
+	 * unless a referral to a server for one of its ancestors is cached.  If that server can't be
+	 * reached, or says the name isn't in its zone, the referral is stale: starts over at the root.
+	 */
+	private JSONObject resolveFromClosest(String name, String rpccall, JSONObject obj, int attempts) 
+																						throws DDNSException, JSONException, IOException {
+		Referral start = closestServer(name);
+		if (start.zone != null) {
+			try {
+				obj.put("name", start.name);
+				JSONObject response = resolverHelper(start.name, rpccall, start.ip, start.port, obj, attempts);
+				if (response.optInt("exceptionnum") != 6) return response;
+			} catch (IOException e) {
+				// stale
+			}
+			Log.d(TAG, "Referral for " + start.zone + " to " + start.ip + ":" + start.port + " is stale");
+			referralCache.remove(start.zone);
+		}
+		obj.put("name", name);
+		return resolverHelper(name, rpccall, rootServerIP, rootPort, obj, attempts);
+	}
+	
+	/* Finds where to start resolving name.  Walks up its ancestors, deepest first, looking for one
+	 * with a cached referral.  Cached CNAMEs along the way are followed, which changes the name.
+	 */
+	private Referral closestServer(String name) throws DDNSException {
+		Referral start = new Referral();
+		start.name = name;
+		start.ip = rootServerIP;
+		start.port = rootPort;
+		if (referralCache == null && cnameCache == null) return start;
+		
+		for (int rewrites = 0; rewrites < maxResolveAttempts; rewrites++) {
+			DDNSFullName fullName = DDNSFullName.intern(start.name);
+			DDNSFullName ancestor = fullName;
+			String alias = null;
+			while (!ancestor.equals(DDNSFullName.ROOTNAME)) {
+				String ancestorName = ancestor.toString();
+				if (cnameCache != null && (alias = cnameCache.get(ancestorName)) != null) break;
+				String server = referralCache == null ? null : referralCache.get(ancestorName);
+				if (server != null) {
+					start.zone = ancestorName;
+					start.ip = server.substring(0, server.lastIndexOf(':'));
+					start.port = Integer.parseInt(server.substring(server.lastIndexOf(':')+1));
+					return start;
+				}
+				ancestor = (DDNSFullName)ancestor.parent();
+			}
+			if (alias == null) return start;
+			start.name = fullName.replaceAncestor(ancestor, new DDNSFullName(alias)).toString();
+		}
+		throw new DDNSException.DDNSTTLExpiredException(new DDNSFullName(name));
+	}
+	
+	/* Remembers a CNAME or NS node returned by a server, so later lookups under it can skip
+	 * the servers above it.
+	 */
+	private void cacheReferral(JSONObject node) throws JSONException {
+		String type = node.getString("type");
+		if (type.equals("CNAME") && cnameCache != null) {
+			cnameCache.put(node.getString("name"), node.getString("alias"));
+		} else if (type.equals("NS") && referralCache != null) {
+			referralCache.put(node.getString("name"), node.getString("ip") + ":" + node.getInt("port"));
+		}
+	}
+	
+	/* Where a lookup starts: the server, and the name to ask it for.  zone is the name of
+	 * the cached referral that led there, or null if it's the root.
+	 */
+	private static class Referral {
+		String name;
+		String zone;
+		String ip;
+		int port;
+	}
+
+	
+	/* Makes a resolve call to the server.  If its zone has secondaries, the call goes to whichever of
+	 * the zone's servers is next in turn instead, and on to the others if that one can't answer.
+	 */
+	private JSONObject resolveCall(String ip, int port, JSONObject args) throws JSONException, IOException {
+		String server = ip + ":" + port;
+		List<String> targets = serversFor(server);
+		IOException failure = null;
+		for (String target : targets) {
+			try {
+				JSONObject result = resolveCallTo(target.substring(0, target.lastIndexOf(':')),
+													Integer.parseInt(target.substring(target.lastIndexOf(':')+1)), args);
+				if (target.equals(server) || answered(result)) return noteServers(server, result);
+			} catch (IOException e) {
+				if (targets.size() > 1) serverDown(target, e);
+				failure = e;
+			}
+		}
+		if (failure == null) failure = new IOException("No server for " + server + "'s zone could answer");
+		throw failure;
+	}
+	
+	/* Makes a resolve call, in a UDP datagram if possible, otherwise by RPC.
+	 */
+	private JSONObject resolveCallTo(String ip, int port, JSONObject args) throws JSONException, IOException {
+		if (useUDP && !args.optBoolean("recursive")) {
+			JSONObject result = resolveUDP(ip, port, args.getString("name"));
+			if (result != null) return result;
+		}
+		return RPCCall.invoke(ip, port, "ddns", "resolve", args);
+	}
+	
+	/* The servers to send a query for server's zone to, in the order to try them: the zone's servers,
+	 * starting with the one whose turn it is, then those that didn't answer recently.  Just server
+	 * if the zone has no secondaries.
+	 */
+	private List<String> serversFor(String server) {
+		String[] servers = spreadQueries ? zoneServers.get(server) : null;
+		if (servers == null) return Collections.singletonList(server);
+		List<String> targets = new ArrayList<String>(servers.length + 1);
+		List<String> down = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+		int start = (nextServer.getAndIncrement() & 0x7fffffff) % servers.length;
+		boolean listed = false;
+		for (int i = 0; i < servers.length; i++) {
+			String target = servers[(start + i) % servers.length];
+			listed |= target.equals(server);
+			Long downUntil = serverDownUntil.get(target);
+			if (downUntil != null && now < downUntil) down.add(target);
+			else targets.add(target);
+		}
+		// the zone may list the server under another address; it's still the last resort
+		if (!listed) down.add(server);
+		targets.addAll(down);
+		return targets;
+	}
+	
+	/* Whether a secondary's response can be used.  It can't if the secondary doesn't have the
+	 * zone yet (a runtime exception) or any more (a zone exception).
+	 */
+	private static boolean answered(JSONObject response) {
+		int exceptionnum = response.optInt("exceptionnum");
+		return exceptionnum != 4 && exceptionnum != 6;
+	}
+	
+	private void serverDown(String server, IOException e) {
+		Log.d(TAG, "DDNS server " + server + " didn't answer: " + e.getMessage());
+		serverDownUntil.put(server, System.currentTimeMillis() + SERVER_RETRY_INTERVAL);
+	}
+	
+	/* Remembers the servers a response lists for the zone of the server it was asked of (see
+	 * DDNSService), or that the zone has none.  Returns the response.
+	 */
+	private JSONObject noteServers(String server, JSONObject response) throws JSONException {
+		JSONArray servers = response.optJSONArray("servers");
+		if (servers == null) {
+			if (!zoneServers.isEmpty()) zoneServers.remove(server);
+			return response;
+		}
+		String[] known = zoneServers.get(server);
+		boolean same = known != null && known.length == servers.length();
+		for (int i = 0; same && i < known.length; i++) same = known[i].equals(servers.getString(i));
+		if (!same) {
+			String[] list = new String[servers.length()];
+			for (int i = 0; i < list.length; i++) list[i] = servers.getString(i);
+			zoneServers.put(server, list);
+		}
+		return response;
+	}
+	
+	/* Sends a resolve to the server in a UDP datagram (see DDNSService for the format).  Returns
+	 * the result, or null if the caller should use RPC: the server asked for that, or didn't answer
+	 * within udpTimeout.  A server that didn't answer isn't sent datagrams for a while.
+	 */
+	private JSONObject resolveUDP(String ip, int port, String name) throws JSONException {
+		String server = ip + ":" + port;
+		Long downUntil = udpDownUntil.get(server);
+		if (downUntil != null) {
+			if (System.currentTimeMillis() < downUntil) return null;
+			udpDownUntil.remove(server);
+		}
+		
+		// sockets are reused, since making one costs more than the resolve itself
+		UDPChannel channel = udpChannels.poll();
+		try {
+			if (channel == null) channel = new UDPChannel();
+			int id = udpIds.nextInt();
+			byte[] request = channel.request(id, name);
+			if (request == null) {
+				udpChannels.offer(channel);
+				return null;
+			}
+			InetAddress address = InetAddress.getByName(ip);
+			channel.socket.send(new DatagramPacket(request, request.length, address, port));
+			
+			DatagramPacket packet = new DatagramPacket(channel.buf, channel.buf.length);
+			long deadline = System.currentTimeMillis() + udpTimeout;
+			while (true) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) throw new SocketTimeoutException("no reply in " + udpTimeout + " msec");
+				channel.socket.setSoTimeout((int)left);
+				packet.setLength(channel.buf.length);
+				channel.socket.receive(packet);
+				if (!address.equals(packet.getAddress()) || port != packet.getPort()) continue;
+				JSONObject reply;
+				try {
+					reply = new JSONObject(new String(channel.buf, 0, packet.getLength(), UTF8));
+				} catch (JSONException e) {
+					continue;
+				}
+				if (reply.optInt("id") != id) continue;		// a late reply to an earlier request
+				JSONObject result = reply.optJSONObject("result");	// null if the server said to use RPC
+				udpChannels.offer(channel);
+				return result;
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "UDP resolve of " + name + " at " + server + " failed, using RPC: " + e.getMessage());
+			udpDownUntil.put(server, System.currentTimeMillis() + UDP_RETRY_INTERVAL);
+			if (channel != null) udpChannels.offer(channel);
+			return null;
+		}
+	}
+	
+	/* A socket for UDP resolves, a buffer big enough for any reply, and one for requests.
+	 */
+	private static class UDPChannel {
+		final DatagramSocket socket = new DatagramSocket();
+		final byte[] buf = new byte[65507];
+		private final byte[] requestBuf = new byte[UDP_REQUEST_SIZE];
+		
+		UDPChannel() throws SocketException {}
+		
+		/* The request for name, padded with spaces to UDP_REQUEST_SIZE bytes, in requestBuf; null if
+		 * the name is too long to fit. */
+		byte[] request(int id, String name) throws JSONException {
+			byte[] request = new JSONObject().put("id", id).put("name", name).toString().getBytes(UTF8);
+			if (request.length > UDP_REQUEST_SIZE) return null;
+			System.arraycopy(request, 0, requestBuf, 0, request.length);
+			Arrays.fill(requestBuf, request.length, UDP_REQUEST_SIZE, (byte)' ');
+			return requestBuf;
+		}
 	}
 
+	/* Returns the name that results from replacing the CNAME node's name, which is name or one
+	 * of its ancestors, with the CNAME's alias.
+	 */
+	static String followCNAME(String name, JSONObject node) throws DDNSException, JSONException {
+		DDNSFullName cname = DDNSFullName.intern(node.getString("name"));
+		DDNSFullName fullName = DDNSFullName.intern(name);
+		if(!fullName.isDescendantOf(cname))
+			throw new DDNSException.DDNSRuntimeException("CNAME " + cname + " returned for unrelated name " + fullName);
+		return fullName.replaceAncestor(cname, new DDNSFullName(node.getString("alias"))).toString();
+	}
+
+	/**
+	 * Resolves many names at once.  Names in the cache are answered from it.  The rest are sent
+	 * in one resolvebatch call to the root server, or to the closest server a referral is cached
+	 * for; those it refers elsewhere are grouped by the server they're referred to, and each server
+	 * gets one call for all of its names.  So the number of calls depends on the number of zones
+	 * involved, not the number of names.
+	 * <p>
+	 * Names that can't be resolved are left out of the result.  Failures are cached as resolve()
+	 * caches them, so resolve() on one of those names gives the reason without another lookup.
+	 * A server that doesn't support resolvebatch is sent one resolve call per name instead.
+	 * @param names The names to resolve
+	 * @return The ARecord for each name that was resolved, by name
+	 */
+	@Override
+	public Map<String, ARecord> resolveAll(Collection<String> names) throws DDNSException, JSONException {
+		Map<String, ARecord> results = new HashMap<String, ARecord>();
+		
+		// names still to resolve, each with the name being looked up for it (after any CNAMEs), by server "ip:port"
+		Map<String, List<String[]>> pending = new HashMap<String, List<String[]>>();
+		String root = rootServerIP + ":" + rootPort;
+		for (String nameStr : names) {
+			if (results.containsKey(nameStr)) continue;
+			CacheRecord cached = cacheGet(nameStr);
+			if (cached == null) {
+				Referral start = closestServer(nameStr);
+				addQuery(pending, start.ip + ":" + start.port, nameStr, start.name);
+				continue;
+			}
+			try {
+				results.put(nameStr, cached.getRecord());
+			} catch (DDNSException e) {
+				// a cached failure: leave it out
+			}
+		}
+		
+		for (int attempt = 0; attempt < maxResolveAttempts && !pending.isEmpty(); attempt++) {
+			Map<String, List<String[]>> referred = new HashMap<String, List<String[]>>();
+			for (Map.Entry<String, List<String[]>> group : pending.entrySet()) {
+				String server = group.getKey();
+				String ip = server.substring(0, server.lastIndexOf(':'));
+				int port = Integer.parseInt(server.substring(server.lastIndexOf(':')+1));
+				List<String[]> queries = group.getValue();
+				
+				List<JSONObject> responses;
+				try {
+					responses = resolveBatch(ip, port, queries);
+				} catch (IOException e) {
+					Log.w(TAG, "resolvebatch to " + server + " failed: " + e.getMessage());
+					// if we were sent there by a stale cached referral, the root knows better
+					if (!server.equals(root)) {
+						for (String[] query : queries) addQuery(referred, root, query[0], query[1]);
+					}
+					continue;
+				}
+				
+				for (int i = 0; i < queries.size(); i++) {
+					String nameStr = queries.get(i)[0];
+					String lookupName = queries.get(i)[1];
+					JSONObject response = responses.get(i);
+					if (response.getString("resulttype").equals("ddnsexception")) {
+						if (response.getInt("exceptionnum") == 6 && !server.equals(root)) {
+							addQuery(referred, root, nameStr, lookupName);		// a stale referral
+							continue;
+						}
+						cacheFailure(nameStr, response.getInt("exceptionnum"));
+						continue;
+					}
+					JSONObject node = response.getJSONObject("node");
+					if (response.getBoolean("done")) {
+						// either A or SOA
+						ARecord result = (ARecord) DDNSRRecord.unmarshall(node);
+						cachePutGlobal(nameStr, new CacheRecord(result));
+						results.put(nameStr, result);
+						continue;
+					}
+					cacheReferral(node);
+					if (node.getString("type").equals("CNAME")) {
+						Referral start = closestServer(followCNAME(lookupName, node));
+						addQuery(referred, start.ip + ":" + start.port, nameStr, start.name);
+					} else {
+						addQuery(referred, node.getString("ip") + ":" + node.getInt("port"), nameStr, lookupName);
+					}
+				}
+			}
+			pending = referred;
+		}
+		return results;
+	}
 	
+	/* Adds the query {nameStr, lookupName} to the server's group.
+	 */
+	private static void addQuery(Map<String, List<String[]>> groups, String server, String nameStr, String lookupName) {
+		List<String[]> group = groups.get(server);
+		if (group == null) {
+			group = new ArrayList<String[]>();
+			groups.put(server, group);
+		}
+		group.add(new String[] {nameStr, lookupName});
+	}
+	
+	/* Asks one server to resolve the lookup names (element 1) of the queries, and returns its
+	 * responses in the same order.  As with resolveCall(), if the server's zone has secondaries the
+	 * queries go to its servers in turn.
+	 */
+	private List<JSONObject> resolveBatch(String ip, int port, List<String[]> queries) throws JSONException, IOException, DDNSException {
+		String server = ip + ":" + port;
+		List<String> targets = serversFor(server);
+		IOException failure = null;
+		for (String target : targets) {
+			try {
+				List<JSONObject> responses = resolveBatchAt(server, target.substring(0, target.lastIndexOf(':')),
+															Integer.parseInt(target.substring(target.lastIndexOf(':')+1)), queries);
+				boolean allAnswered = true;
+				for (JSONObject response : responses) allAnswered &= answered(response);
+				if (target.equals(server) || allAnswered) return responses;
+			} catch (IOException e) {
+				if (targets.size() > 1) serverDown(target, e);
+				failure = e;
+			} catch (DDNSException e) {
+				// a secondary that can't answer yet
+				if (target.equals(server)) throw e;
+			}
+		}
+		if (failure == null) failure = new IOException("No server for " + server + "'s zone could answer");
+		throw failure;
+	}
+	
+	/* Sends the queries to ip:port, for server's zone.  Large batches are split into several calls.
+	 */
+	private List<JSONObject> resolveBatchAt(String server, String ip, int port, List<String[]> queries) throws JSONException, IOException, DDNSException {
+		List<JSONObject> responses = new ArrayList<JSONObject>(queries.size());
+		for (int start = 0; start < queries.size(); start += MAX_BATCH) {
+			int end = Math.min(queries.size(), start + MAX_BATCH);
+			JSONArray batch = new JSONArray();
+			for (int i = start; i < end; i++) batch.put(queries.get(i)[1]);
+			JSONObject response;
+			try {
+				JSONObject args = new JSONObject().put("names", batch);
+				if (recursive) args.put("recursive", true);
+				response = RPCCall.invoke(ip, port, "ddns", "resolvebatch", args);
+			} catch (IOException e) {
+				if (e.getMessage() == null || !e.getMessage().contains("not registered")) throw e;
+				// an older server: one call per name
+				for (int i = start; i < end; i++) {
+					JSONObject args = new JSONObject().put("name", queries.get(i)[1]);
+					if (recursive) args.put("recursive", true);
+					responses.add(noteServers(server, RPCCall.invoke(ip, port, "ddns", "resolve", args)));
+				}
+				continue;
+			}
+			if (!response.getString("resulttype").equals("resolvebatchresult"))
+				throw new DDNSException.DDNSRuntimeException("resolvebatch failed: " + response.optString("message"));
+			noteServers(server, response);
+			JSONArray results = response.getJSONArray("results");
+			if (results.length() != end - start)
+				throw new DDNSException.DDNSRuntimeException("resolvebatch returned " + results.length() + " results for " + (end - start) + " names");
+			for (int i = 0; i < results.length(); i++) responses.add(results.getJSONObject(i));
+		}
+		return responses;
+	}
+	
+	/* Caches a failure to resolve nameStr, as resolve() does: no such name and no address are remembered */
+	private void cacheFailure(String nameStr, int exceptionnum) {
+		if (exceptionnum == 1) {
+			cachePutGlobal(nameStr, new CacheRecord(new DDNSException.DDNSNoSuchNameException(new DDNSFullName(nameStr)), false));
+		} else if (exceptionnum == 2) {
+			cachePutGlobal(nameStr, new CacheRecord(new DDNSException.DDNSNoAddressException(new DDNSFullName(nameStr)), false));
+		}
+	}
+
 	@Override
 	public String dumpState() {
-		return "whatever you want";
+		return "local names: " + localRecords.size() + "  " + (hasCaching ? cache.toString() : "no cache") +
+				"\nreferrals: " + (referralCache == null ? "not cached" : referralCache.toString()) +
+				"\nCNAMEs: " + (cnameCache == null ? "not cached" : cnameCache.toString()) +
+				"\nzones with secondaries: " + zoneServers.size() +
+				"\nscheduler: " + scheduler;
 	}
 	
+	// Returns what's known about name: its local record if it's registered from here, otherwise its cache entry, if any 
+	private CacheRecord cacheGet(String name) {
+		CacheRecord record = localRecords.get(name);
+		if (record == null && hasCaching) record = cache.get(name);
+		return record;
+	}
 	
 	private void cachePutLocal(String name, CacheRecord record) {
-		synchronized (cache) {
-			// if the cache already contains a record for this local name, 
-			// cancel the previous registration task while we still have a way to refer to it 
-			if(cache.containsKey(name)) {
-				cache.get(name).cancelRegistration();
-			}
-			// update/add the name->record mapping
-			cache.put(name, record);
+		// update/add the name->record mapping, and cancel the previous registration task, if any
+		CacheRecord previous = localRecords.put(name, record);
+		if (previous != null) {
+			previous.cancelRegistration();
 		}
 	}
 	
 	// Adds the given name -> ip&port mapping to the cache 
 	private void cachePutGlobal(String name, CacheRecord record) {
 		if (hasCaching) {
-			synchronized (cache) {
-				cache.put(name, record);
-			}
-			record.scheduleCacheRemoval();
+			cache.put(name, record);
 		}
 	}
 	
+	// Schedules a task to run after delay millis, unless we're shutting down.  Returns null if it wasn't scheduled.
+	private ScheduledFuture<?> scheduleTask(Runnable task, long delay) {
+		if (shuttingDown) return null;
+		try {
+			return scheduler.schedule(task, delay);
+		} catch (RejectedExecutionException e) {
+			// the scheduler has been shut down
+			return null;
+		}
+	}
+	
+	// Wraps work that waits on the network so that, when scheduled, it runs on registerExecutor
+	// rather than holding up one of the shared scheduler's threads
+	private Runnable inBackground(final Runnable work) {
+		return new Runnable() {
+			public void run() {
+				synchronized (DDNSResolverService.this) {
+					if (shuttingDown) return;
+					if (registerExecutor == null) registerExecutor = daemonExecutor("DDNS register");
+				}
+				try {
+					registerExecutor.execute(work);
+				} catch (RejectedExecutionException e) {
+					// shutting down
+				}
+			}
+		};
+	}
+	
+	// A single-thread executor whose thread doesn't keep the app from terminating
+	private static ExecutorService daemonExecutor(final String threadName) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, threadName);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	// A delay picked at random from [delay/2, 3*delay/2), so retries from many hosts don't arrive together
+	private long jittered(long delay) {
+		return delay/2 + (long)(jitter.nextDouble()*delay);
+	}
 	
-	// A timer task for scheduling cache cleaning events
-	class CacheTask extends TimerTask {
-		private String nameToRemove;
+	// A task for scheduling re-registering events
+	class RegisterTask implements Runnable {
+		private Registration registration;
 		
-		public CacheTask(String name) {
-			nameToRemove = name;
+		public RegisterTask(Registration registration) {
+			this.registration = registration;
 		}
 		
 		@Override
 		public void run() {
-			// remove item from cache
-			synchronized (cache) {			
-				if (cache.containsKey(nameToRemove)) {
-					cache.remove(nameToRemove);
-				}
+			if (!registration.isActive()) return;
+			try {
+				sendRegistration(registration);
+			} catch (DDNSException e) {
+				Log.w(TAG, "re-register of " + registration.name + " failed: " + e.getMessage());
 			}
 		}
+		
 	}
 	
-	// A timer task for scheduling re-registering events
-	class RegisterTask extends TimerTask {
-		private DDNSFullNameInterface name;
-		private int port;
+	/* A name registered from here, and its next renewal or retry.  Cancelled when the name
+	 * is registered again, or unregistered, or the server rejects it for good.
+	 */
+	private class Registration {
+		final DDNSFullNameInterface name;
+		final int port;
+		private ScheduledFuture<?> task = null;	/* the scheduled renewal or retry */
+		private long retryDelay = registerRetry;	/* millis before the next retry, before jitter */
+		private boolean cancelled = false;
 		
+		Registration(DDNSFullNameInterface name, int port) {
+			this.name = name;
+			this.port = port;
+		}
 		
-		public RegisterTask(DDNSFullNameInterface registername, int registerport) {
-			name = registername;
-			port = registerport;
+		/* the server accepted the registration: renew it after delay millis */
+		synchronized void renewIn(long delay) {
+			retryDelay = registerRetry;
+			schedule(delay);
 		}
 		
-		@Override
-		public void run() {
-			try {
-				register(name, port);
-			} catch (DDNSException e) {
-				// what to do here??
-			}
+		/* the registration failed, but may succeed later: try again, backing off */
+		synchronized void retry() {
+			schedule(jittered(retryDelay));
+			retryDelay = Math.min(2*retryDelay, registerRetryMax);
+		}
+		
+		synchronized void cancel() {
+			cancelled = true;
+			if (task != null) task.cancel(false);
+		}
+		
+		synchronized boolean isActive() {
+			return !cancelled;
 		}
 		
+		private void schedule(long delay) {
+			if (cancelled) return;
+			if (task != null) task.cancel(false);
+			task = scheduleTask(inBackground(new RegisterTask(this)), delay);
+		}
 	}
 	
 	
 	private class CacheRecord {
 		private ARecord nRecord;			/* the ARecord/SOARecord this CacheRecord represents */
 		private DDNSException nException;	/* used to indicate that this record represents either nosuchname or noaddress */
-		private TimerTask nTask;				/* used to re-register local records, or remove global records from the cache */
+		private Registration nRegistration;	/* keeps local records registered */
 		private boolean nLocal;			/* indicator of whether or not this record represents a local name/address */
 		
 		/* Constructs a record to associate with a legal name
-		 * TimerTask will be a CacheTask for a global entry, or a RegisterTask if this is a local entry
+		 * Registration will be null for a global entry
 		 */
-		public CacheRecord(ARecord record, TimerTask task, boolean isLocal) {
+		public CacheRecord(ARecord record, Registration registration, boolean isLocal) {
 			nRecord = record;
-			nTask = task;
+			nRegistration = registration;
 			nLocal = isLocal;
 		}
 		
+		/* Constructs a global record for a name that was resolved
+		 */
+		public CacheRecord(ARecord record) {
+			this(record, null, false);
+		}
+		
 		/* Constructs a record to associate with an invalid name, or one that has no address. 
-		 * Intended for use with global entries (still need a TimerTask in order to remove from the cache)
-		 * isLocal is set to false when using this constructor.
+		 * Local entries are never removed from the cache, and if they are invalid shouldn't reregister.
 		 */
-		public CacheRecord(DDNSException ex, TimerTask cachetask) {
+		public CacheRecord(DDNSException ex, boolean isLocal) {
 			nRecord = null;
-			nLocal = false;
+			nRegistration = null;
+			nLocal = isLocal;
 			nException = ex;
-			nTask = cachetask;
 		}
 		
-		/* Constructs a record to associate with an invalid name, or one that has no address.
-		 * Intended for use with local entries (local entries are never removed from the cache, and if they are invalid shouldn't reregister).
-		 * isLocal is set to true when using this constructor.
+		/* Constructs a record to associate with an invalid local name, or one that has no address.
 		 */
 		public CacheRecord(DDNSException ex) {
-			nRecord = null;
-			nTask = null;
-			nLocal = true;
-			nException = ex;
+			this(ex, true);
 		}
 		
 		/* returns the record containing the IP and port */
@@ -560,22 +1208,21 @@ public class DDNSResolverService extends NetLoadableService implements HTTPProvi
 			return nLocal;
 		}
 		
-		/* trusts that the timertask associated with this record is for registration, and cancels it */
+		/* stops keeping this local record registered */
 		public void cancelRegistration() {
-			if (nTask != null) {
-				nTask.cancel();
+			if (nRegistration != null) {
+				nRegistration.cancel();
 			}
 		}
 		
-		/* trusts that the timertask is for registration, and schedules it to reregister */
-		public void scheduleRegistration(long delay) {
-			if (nTask != null) 
-				timer.schedule(nTask, delay);
+		/* returns true if this local record is being kept registered */
+		public boolean isRegistered() {
+			return nRegistration != null && nRegistration.isActive();
 		}
 		
-		public void scheduleCacheRemoval() {
-			if (nTask != null)
-				timer.schedule(nTask, cacheTimeout);
+		/* returns true if this local record is being kept registered at the given port */
+		public boolean isRegistrationOf(int port) {
+			return isRegistered() && nRegistration.port == port;
 		}
 		
 	}
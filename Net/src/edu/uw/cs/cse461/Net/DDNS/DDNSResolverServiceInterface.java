@@ -1,5 +1,8 @@
 package edu.uw.cs.cse461.Net.DDNS;
 
+import java.util.Collection;
+import java.util.Map;
+
 import edu.uw.cs.cse461.Net.DDNS.DDNSRRecord.ARecord;
 
 
@@ -7,4 +10,5 @@ public interface DDNSResolverServiceInterface {
 	public void register(DDNSFullNameInterface name, int port) throws Exception;
 	public void unregister(DDNSFullNameInterface name) throws Exception;
 	public ARecord resolve(String nameStr) throws Exception;
+	public Map<String, ARecord> resolveAll(Collection<String> names) throws Exception;
 }
@@ -1,9 +1,24 @@
 package edu.uw.cs.cse461.Net.DDNS;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -12,6 +27,7 @@ import org.json.JSONObject;
 import edu.uw.cs.cse461.HTTP.HTTPProviderInterface;
 import edu.uw.cs.cse461.Net.Base.NetBase;
 import edu.uw.cs.cse461.Net.Base.NetLoadable.NetLoadableService;
+import edu.uw.cs.cse461.Net.Base.NetScheduler;
 import edu.uw.cs.cse461.Net.DDNS.DDNSException.DDNSAuthorizationException;
 import edu.uw.cs.cse461.Net.DDNS.DDNSException.DDNSNoAddressException;
 import edu.uw.cs.cse461.Net.DDNS.DDNSException.DDNSNoSuchNameException;
@@ -19,7 +35,8 @@ import edu.uw.cs.cse461.Net.DDNS.DDNSException.DDNSRuntimeException;
 import edu.uw.cs.cse461.Net.DDNS.DDNSException.DDNSTTLExpiredException;
 import edu.uw.cs.cse461.Net.DDNS.DDNSException.DDNSZoneException;
 import edu.uw.cs.cse461.Net.DDNS.DDNSRRecord.*;
-import edu.uw.cs.cse461.Net.RPC.RPCCallableMethod;
+import edu.uw.cs.cse461.Net.RPC.RPCCall;
+import edu.uw.cs.cse461.Net.RPC.RPCHandler;
 import edu.uw.cs.cse461.Net.RPC.RPCService;
 import edu.uw.cs.cse461.util.Log;
 
@@ -39,7 +56,30 @@ import edu.uw.cs.cse461.util.Log;
  * app:"ddns" supports RPC calls:
  *     register( {host: hostname,  ip: ipaddr,   port: portnum} ) => { status: "OK" } or errormsg
  *     resolve( { host: hostname } ) => { host: repeats hostname, ip: ip address, authoritative: boolean } ) or errormsg
+ *     resolvebatch( { names: [name, ...] } ) => { resulttype: "resolvebatchresult", results: [ resolve result, ... ] } or errormsg
+ *     transfer( { serial: serial, server: "ip:port" } ) => { resulttype: "transferresult", serial: serial, ... } or errormsg
  * </pre>
+ * Either resolve call can include recursive: true.  A server configured with ddns.recursive=1 then
+ * follows CNAMEs and NS referrals itself and returns the final answer; other servers ignore it.
+ * So does a recursive server that already has ddns.maxrecursions recursive resolves under way, since
+ * each ties up an RPC worker while it waits on other servers.
+ * <p>
+ * Unless ddns.udp=0, resolve can also be asked in a UDP datagram, sent to the RPC port number:
+ * <pre>
+ *     { id: int, name: name }  =>  { id: repeats id, result: resolve result }  or  { id: repeats id, tcp: true }
+ * </pre>
+ * The second reply means the caller should make the resolve call over RPC instead: the answer
+ * didn't fit in ddns.udpmaxsize bytes, or in the request's size, or the request asked for recursion,
+ * which is only done over RPC.  A reply is never longer than its request, so a datagram with a forged
+ * source address can't get the server to send its victim more bytes than the sender did.  Callers
+ * pad requests with trailing spaces to leave room for the answer.
+ * <p>
+ * A zone can have secondary servers, configured with ddns.primary=ip:port instead of ddns.nodes.
+ * A secondary pulls the zone's nodes and registrations from the primary with transfer calls (see
+ * _rpcTransfer()), every ddns.transferinterval millis, and answers resolves from its copy.  It sends
+ * register and unregister calls on to the primary.  Once a zone has secondaries, its servers add
+ * servers: ["ip:port", ...], the primary's and the secondaries' addresses, to their resolve answers,
+ * so resolvers can spread their queries among them.
  * 
  *  * @author zahorjan
  *
@@ -47,11 +87,49 @@ import edu.uw.cs.cse461.util.Log;
 public class DDNSService extends NetLoadableService implements HTTPProviderInterface, DDNSServiceInterface {
 	private static String TAG="DDNSService";
 
-	private RPCCallableMethod resolve;
-	private RPCCallableMethod register;
-	private RPCCallableMethod unregister;
+	private RPCHandler resolve;
+	private RPCHandler resolveBatch;
+	private RPCHandler register;
+	private RPCHandler unregister;
+	private RPCHandler transfer;
+
+	// The tree.  A secondary replaces it if the primary's changes; otherwise it's built once.
+	private volatile DDNSNode mRoot = null;
+	private volatile DDNSFullName mZoneName = null;    // the name of mRoot
+	// every node in the tree, by full name.  A lookup is usually one get() on this.
+	private volatile Map<DDNSFullNameInterface, DDNSNode> mNodeIndex = new ConcurrentHashMap<DDNSFullNameInterface, DDNSNode>();
+	private JSONArray mRecords = null;        // the tree's nodes, without passwords, as sent in full transfers
+	private ExpiryWheel mExpiryWheel = null;  // drops registrations when their lifetime is up
+	private DDNSZoneStore mStore = null;      // non-null if registrations are kept on disk (ddns.storedir)
+	private final int mMaxBatch = NetBase.theNetBase().config().getAsInt("ddns.maxbatch", 1024, 1, TAG);  // names per resolvebatch call
 
-	private DDNSNode mRoot = null;
+	// recursive resolution, for callers that ask for it
+	private final boolean mRecursive = NetBase.theNetBase().config().getAsInt("ddns.recursive", 0, TAG) != 0;
+	private final int mRecursionLimit = NetBase.theNetBase().config().getAsInt("ddns.recursionlimit", 10, 1, TAG);   // servers asked per name
+	private String mRootServer = null;        // "ip:port" of the root, where names outside the zone are sent; null if none
+	private DDNSResolverCache<JSONObject> mRecursionCache = null;  // other servers' answers, by "ip:port name"; null if not kept
+	private Semaphore mRecursions = null;     // permits for recursive resolves under way at once
+
+	// replication: secondaries pull the zone from the primary (see _rpcTransfer())
+	private String mPrimary = null;           // "ip:port" of the primary, if this is a secondary; null if this is the primary
+	private String mMyAddress = null;         // "ip:port" of this server, as listed to resolvers
+	private final String mTransferPassword = NetBase.theNetBase().config().getProperty("ddns.transferpassword");  // null if anyone may transfer
+	private final int mTransferInterval = NetBase.theNetBase().config().getAsInt("ddns.transferinterval", 1000, 10, TAG);  // millis between a secondary's transfers
+	private final int mSecondaryTimeout = NetBase.theNetBase().config().getAsInt("ddns.secondarytimeout", 10000, 100, TAG);  // millis a silent secondary stays listed
+	private final int mTransferLogSize = NetBase.theNetBase().config().getAsInt("ddns.transferlog", 10000, 1, TAG);  // changes kept for incremental transfers
+	private final Object mTransferLock = new Object();   // guards mSerial, mLogBase and mChangeLog
+	private long mSerial = System.currentTimeMillis();  // bumped by each logged change; a secondary's is the primary's as of its last transfer
+	private long mLogBase;                    // the serial just before the oldest change in mChangeLog
+	private volatile ArrayDeque<Change> mChangeLog = null;   // recent registration changes, oldest first; null until a secondary first transfers
+	private final Map<String, Long> mSecondaries = new ConcurrentHashMap<String, Long>();   // "ip:port" -> time of its last transfer
+	private volatile JSONArray mServers = null;   // all the zone's servers, primary first, if it has secondaries; otherwise null
+	private ScheduledFuture<?> mSecondaryPruneTask = null;   // drops secondaries that stop transferring
+	private Thread mTransferThread = null;    // a secondary's transfers
+	private volatile boolean mShutdown = false;
+
+	private DatagramSocket mDatagramSocket = null;   // for resolves sent over UDP; null if there's no UDP listener
+	private final int mMaxDatagram = NetBase.theNetBase().config().getAsInt("ddns.udpmaxsize", 1400, 64, 65507, TAG);  // bytes in a reply
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 
 	private static final int CNAMERECORD_CONFIG_PARTS = 4;
 	private static final int ARECORD_CONFIG_PARTS = 3;
@@ -66,6 +144,18 @@ public class DDNSService extends NetLoadableService implements HTTPProviderInter
 	 */
 	@Override
 	public void shutdown() {
+		mShutdown = true;
+		if(mTransferThread != null) mTransferThread.interrupt();
+		synchronized(mSecondaries) {
+			if(mSecondaryPruneTask != null) mSecondaryPruneTask.cancel(false);
+		}
+		if(mDatagramSocket != null) mDatagramSocket.close();   // ends the UDP thread
+		if(mExpiryWheel != null) mExpiryWheel.cancel();
+		if(mRecursionCache != null) mRecursionCache.cancel();
+		if(mStore != null) {
+			snapshot();
+			mStore.close();
+		}
 		super.shutdown();
 	}
 
@@ -86,17 +176,59 @@ public class DDNSService extends NetLoadableService implements HTTPProviderInter
 			// set up RPC callable methods
 			//--------------------------------------------------------------
 
-			// export methods via the rpc service
-			resolve = new RPCCallableMethod(this, "_rpcResolve");
-			register = new RPCCallableMethod(this, "_rpcRegister");
-			unregister = new RPCCallableMethod(this, "_rpcUnregister");
+			// export methods via the rpc service.  These are called on every name lookup,
+			// so they're plain handlers rather than reflective RPCCallableMethods.
+			resolve = new RPCHandler() {
+				public JSONObject handleCall(JSONObject args) { return _rpcResolve(args); }
+			};
+			resolveBatch = new RPCHandler() {
+				public JSONObject handleCall(JSONObject args) { return _rpcResolveBatch(args); }
+			};
+			register = new RPCHandler() {
+				public JSONObject handleCall(JSONObject args) { return _rpcRegister(args); }
+			};
+			unregister = new RPCHandler() {
+				public JSONObject handleCall(JSONObject args) { return _rpcUnregister(args); }
+			};
+			transfer = new RPCHandler() {
+				public JSONObject handleCall(JSONObject args) { return _rpcTransfer(args); }
+			};
 
 			RPCService rpcService = (RPCService)NetBase.theNetBase().getService("rpc");
+			mMyAddress = NetBase.theNetBase().myIP() + ":" + rpcService.localPort();
+			String primary = NetBase.theNetBase().config().getProperty("ddns.primary");
+			if(primary != null && !primary.trim().isEmpty()) mPrimary = primary.trim();
+
+			String rootServer = NetBase.theNetBase().config().getProperty("ddns.rootserver");
+			int rootPort = NetBase.theNetBase().config().getAsInt("ddns.rootport", 0, TAG);
+			if(mRecursive && rootServer != null && rootPort != 0) mRootServer = rootServer + ":" + rootPort;
+			int expiryTick = NetBase.theNetBase().config().getAsInt("ddns.expirytick", 500, 10, TAG);
+			mExpiryWheel = new ExpiryWheel(expiryTick, NetBase.theNetBase().scheduler());
+			if(mRecursive) {
+				// a recursive resolve holds an RPC worker while it waits on other servers, so only some may
+				int maxThreads = rpcService.maxThreads();
+				mRecursions = new Semaphore(NetBase.theNetBase().config().getAsInt("ddns.maxrecursions", Math.max(maxThreads/4, 1), 1, Math.max(maxThreads-1, 1), TAG));
+				int cacheTTL = NetBase.theNetBase().config().getAsInt("ddns.recursivecachettl", 5000, 0, TAG);  //millis
+				if(cacheTTL > 0) {
+					mRecursionCache = new DDNSResolverCache<JSONObject>(NetBase.theNetBase().config().getAsInt("ddns.recursivecachesize", 10000, 1, TAG),
+							cacheTTL, expiryTick, NetBase.theNetBase().scheduler());
+				}
+			}
+			if(mPrimary == null) {
+				// the tree is complete before any call can reach it
+				buildRecordTree();
+				restoreRegistrations();
+			} else {
+				// the tree comes from the primary; until the first transfer, resolves fail as if the server were busy
+				startTransfers();
+			}
+
 			rpcService.registerHandler(loadablename(), "register", register );
 			rpcService.registerHandler(loadablename(), "unregister", unregister );
 			rpcService.registerHandler(loadablename(), "resolve", resolve );
-
-			buildRecordTree();
+			rpcService.registerHandler(loadablename(), "resolvebatch", resolveBatch );
+			rpcService.registerHandler(loadablename(), "transfer", transfer );
+			if(NetBase.theNetBase().config().getAsInt("ddns.udp", 1, TAG) != 0) startUDP(rpcService.localPort());
 		} catch (Exception e) {
 			String msg = "DDNSService constructor caught exception: " + e.getMessage();
 			Log.e(TAG, msg);
@@ -111,24 +243,41 @@ public class DDNSService extends NetLoadableService implements HTTPProviderInter
 			throw new DDNSRuntimeException("no nodes found in config file");
 		}
 
+		List<String[]> definitions = new ArrayList<String[]>();
 		for(int i = 0; i < nodes.length; i++) {
 			nodes[i] = nodes[i].trim();
 			checkValidNode(nodes[i]);
+			definitions.add(nodes[i].split(":"));
 		}
+		installTree(definitions);
+	}
 
-		String[] soaNode = nodes[0].split(":");
+	/**
+	 * Builds the tree from node definitions in the config file's form, [type, name, (alias,) password],
+	 * and makes it the zone.  The first must be the SOA.  Parents come before their children.
+	 */
+	private void installTree(List<String[]> definitions) throws DDNSException {
+		String[] soaNode = definitions.get(0);
 		if(!soaNode[0].toUpperCase().equals(SOA_PREFIX)) {
 			throw new DDNSRuntimeException("first node in list must be an SOA node");
 		}
 
-		mRoot = new DDNSNode(new DDNSFullName(soaNode[1]), soaNode[2], new SOARecord());
+		Map<DDNSFullNameInterface, DDNSNode> nodeIndex = new ConcurrentHashMap<DDNSFullNameInterface, DDNSNode>();
+		JSONArray records = new JSONArray();
+		DDNSFullName zoneName = new DDNSFullName(soaNode[1]);
+		DDNSNode root = new DDNSNode(zoneName, soaNode[2], new SOARecord());
+		nodeIndex.put(zoneName, root);
+		records.put(root.recordEntry());
 
-		for(int i = 1; i < nodes.length; i++) {
-			String[] nodeInfo = nodes[i].split(":");
+		for(int i = 1; i < definitions.size(); i++) {
+			String[] nodeInfo = definitions.get(i);
 			DDNSFullNameInterface nodeName = new DDNSFullName(nodeInfo[1]);
 			DDNSFullNameInterface parentName = nodeName.parent();
 			
-			DDNSNode parentNode = nodeLookup(parentName, true);
+			DDNSNode parentNode = nodeIndex.get(parentName);
+			if(parentNode == null) {
+				throw new DDNSRuntimeException(nodeInfo[1] + " has no parent in the zone");
+			}
 			DDNSRRecord record = parentNode.getRecord();
 			if(record.type() == RRType.RRTYPE_CNAME || record.type() == RRType.RRTYPE_NS) {
 				throw new DDNSRuntimeException(nodeInfo[1] + " has a parent that is either a CNAME or NS");
@@ -149,9 +298,289 @@ public class DDNSService extends NetLoadableService implements HTTPProviderInter
 			String pw = nodeInfo[nodeInfo.length-1];
 			DDNSNode newNode = new DDNSNode(nodeName, pw, record);
 			parentNode.addChild(newNode);
+			nodeIndex.put(nodeName, newNode);
+			records.put(newNode.recordEntry());
 		}
+
+		// the root last: it's what tells nodeLookup() there's a zone
+		mRecords = records;
+		mZoneName = zoneName;
+		mNodeIndex = nodeIndex;
+		mRoot = root;
 	}
 	
+	//---------------------------------------------------------------------------
+	// persistence of registrations
+
+	/**
+	 * If ddns.storedir is set, reads back the registrations stored there and starts a new snapshot.
+	 * Registrations that have expired since are dropped.
+	 */
+	private void restoreRegistrations() {
+		String dir = NetBase.theNetBase().config().getProperty("ddns.storedir");
+		if(dir == null || dir.trim().isEmpty()) return;
+		try {
+			long start = System.currentTimeMillis();
+			mStore = new DDNSZoneStore(new File(dir.trim()), mZoneName,
+					NetBase.theNetBase().config().getAsInt("ddns.snapshotinterval", 10000, 1, TAG),
+					NetBase.theNetBase().config().getAsInt("ddns.storesync", 0, TAG) != 0);
+			List<JSONObject> entries = mStore.load();
+			for(JSONObject entry : entries) {
+				DDNSNode node = mNodeIndex.get(DDNSFullName.intern(entry.getString("name")));
+				if(node == null) continue;   // no longer in the zone
+				node.restore(entry.optString("ip", null), entry.optInt("port", -1), entry.optLong("dieAt", 0), start);
+			}
+			int nLive = 0;
+			for(DDNSNode node : mNodeIndex.values()) {
+				if(node.dieAt() == 0) continue;
+				mExpiryWheel.add(node);
+				nLive++;
+			}
+			snapshot();
+			Log.i(TAG, "Restored " + nLive + " registrations from " + entries.size() + " stored entries in " + (System.currentTimeMillis() - start) + " msec");
+		} catch (Exception e) {
+			Log.e(TAG, "Can't restore registrations from " + dir + ": " + e.getMessage());
+			if(mStore != null) mStore.close();
+			mStore = null;
+		}
+	}
+
+	/**
+	 * Records the node's current registration in the journal, taking a snapshot if it's time to.
+	 * The caller holds the node's lock.
+	 */
+	private void journal(DDNSNode node) {
+		if(mStore == null) return;
+		try {
+			if(mStore.append(node.storeEntry())) snapshot();
+		} catch (Exception e) {
+			Log.e(TAG, "Can't journal registration of " + node.getName() + ": " + e.getMessage());
+		}
+	}
+
+	private void snapshot() {
+		try {
+			// A registration journaled before we take the store's lock is already visible in its node,
+			// and one journaled after goes in the new journal, so none is lost.
+			synchronized(mStore) {
+				List<JSONObject> entries = new ArrayList<JSONObject>();
+				for(DDNSNode node : mNodeIndex.values()) {
+					if(node.dieAt() != 0) entries.add(node.storeEntry());
+				}
+				mStore.snapshot(entries);
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Can't write snapshot: " + e.getMessage());
+		}
+	}
+
+	// persistence of registrations
+	//---------------------------------------------------------------------------
+
+	//---------------------------------------------------------------------------
+	// replication
+
+	/**
+	 * Records a change to the node's registration: in the journal, and in the change log that
+	 * incremental transfers are made from.  The caller holds the node's lock, so changes to a node
+	 * are logged in the order they're made.
+	 */
+	private void changed(DDNSNode node) {
+		journal(node);
+		// nothing is logged until there's a secondary; its first transfer is a full one anyway
+		if(mChangeLog == null) return;
+		synchronized(mTransferLock) {
+			mChangeLog.addLast(new Change(++mSerial, node));
+			if(mChangeLog.size() > mTransferLogSize) mLogBase = mChangeLog.removeFirst().serial;
+		}
+	}
+
+	/**
+	 * Notes that a secondary has transferred, so it's listed to resolvers among the zone's servers.
+	 * A secondary that stops transferring is dropped when it has been silent for ddns.secondarytimeout
+	 * millis, checked every half that.
+	 */
+	private void addSecondary(String server) {
+		if(mSecondaries.put(server, System.currentTimeMillis()) != null) return;
+		Log.i(TAG, "Secondary " + server + " is transferring the zone");
+		synchronized(mSecondaries) {
+			listServers();
+			if(mSecondaryPruneTask != null || mShutdown) return;
+			mSecondaryPruneTask = NetBase.theNetBase().scheduler().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					long cutoff = System.currentTimeMillis() - mSecondaryTimeout;
+					Iterator<Map.Entry<String, Long>> it = mSecondaries.entrySet().iterator();
+					boolean dropped = false;
+					while(it.hasNext()) {
+						Map.Entry<String, Long> secondary = it.next();
+						if(secondary.getValue() >= cutoff) continue;
+						Log.i(TAG, "Secondary " + secondary.getKey() + " has stopped transferring the zone");
+						it.remove();
+						dropped = true;
+					}
+					if(dropped) {
+						synchronized(mSecondaries) {
+							listServers();
+						}
+					}
+				}
+			}, mSecondaryTimeout/2, mSecondaryTimeout/2);
+		}
+	}
+
+	// updates mServers from mSecondaries.  The caller holds mSecondaries' lock.
+	private void listServers() {
+		if(mSecondaries.isEmpty()) {
+			mServers = null;
+			return;
+		}
+		JSONArray servers = new JSONArray().put(mMyAddress);
+		for(String secondary : mSecondaries.keySet()) servers.put(secondary);
+		mServers = servers;
+	}
+
+	/**
+	 * Adds the zone's servers to a result, if it has secondaries, so resolvers can spread their
+	 * queries among them.
+	 */
+	private JSONObject withServers(JSONObject result) {
+		JSONArray servers = mServers;
+		if(servers != null) {
+			try {
+				result.put("servers", servers);
+			} catch(JSONException e) {
+				// can't happen: the key and value aren't null
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Makes a secondary's first transfer, and starts the thread that makes the rest, every
+	 * ddns.transferinterval millis.  Transfers wait on the network, so they have a thread
+	 * of their own rather than a task on the shared scheduler.
+	 */
+	private void startTransfers() {
+		mSerial = 0;   // so the first transfer is a full one
+		transferFromPrimary();
+		mTransferThread = new Thread("DDNS transfer") {
+			public void run() {
+				while(!mShutdown) {
+					try {
+						Thread.sleep(mTransferInterval);
+					} catch(InterruptedException e) {
+						// shutting down
+						return;
+					}
+					transferFromPrimary();
+				}
+			}
+		};
+		mTransferThread.setDaemon(true);
+		mTransferThread.start();
+	}
+
+	// asks the primary for the changes since the last transfer, and applies them.  Failures are
+	// logged, and the zone is served as it is until a transfer succeeds.
+	private void transferFromPrimary() {
+		try {
+			JSONObject args = new JSONObject().put("serial", mSerial).put("server", mMyAddress);
+			if(mTransferPassword != null) args.put("password", mTransferPassword);
+			int colon = mPrimary.lastIndexOf(':');
+			JSONObject response = RPCCall.invoke(mPrimary.substring(0, colon), Integer.parseInt(mPrimary.substring(colon+1)),
+					"ddns", "transfer", args);
+			if(!response.getString("resulttype").equals("transferresult")) {
+				Log.w(TAG, "Transfer from primary " + mPrimary + " failed: " + response.optString("message"));
+				return;
+			}
+			applyTransfer(response);
+		} catch(IOException e) {
+			Log.w(TAG, "Can't reach primary " + mPrimary + ": " + e.getMessage());
+		} catch(Exception e) {
+			Log.e(TAG, "Bad transfer from primary " + mPrimary + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Applies a transfer from the primary.  A full transfer replaces the tree, if its nodes have
+	 * changed, and every registration; an incremental one has just the nodes whose registrations
+	 * have changed.  Expiration times are moved by the difference between the two servers' clocks,
+	 * and the expiry wheel drops registrations here just as the primary's does there.
+	 */
+	private void applyTransfer(JSONObject response) throws JSONException, DDNSException {
+		long now = System.currentTimeMillis();
+		long skew = now - response.getLong("now");
+		boolean full = response.getBoolean("full");
+		if(full) {
+			JSONArray records = response.getJSONArray("records");
+			if(mRecords == null || !mRecords.toString().equals(records.toString())) {
+				List<String[]> definitions = new ArrayList<String[]>();
+				for(int i = 0; i < records.length(); i++) {
+					JSONObject record = records.getJSONObject(i);
+					// no passwords: registrations are made at the primary
+					if(record.getString("type").equals(CNAME_PREFIX))
+						definitions.add(new String[] {CNAME_PREFIX, record.getString("name"), record.getString("alias"), null});
+					else
+						definitions.add(new String[] {record.getString("type"), record.getString("name"), null});
+				}
+				installTree(definitions);
+				Log.i(TAG, "Zone " + mZoneName + " transferred from primary " + mPrimary + ": " + records.length() + " nodes");
+			}
+		}
+
+		Map<DDNSFullNameInterface, DDNSNode> nodeIndex = mNodeIndex;
+		Set<DDNSNode> registered = new HashSet<DDNSNode>();
+		JSONArray registrations = response.getJSONArray("registrations");
+		for(int i = 0; i < registrations.length(); i++) {
+			JSONObject entry = registrations.getJSONObject(i);
+			DDNSNode node = nodeIndex.get(DDNSFullName.intern(entry.getString("name")));
+			if(node == null) continue;
+			long dieAt = entry.optLong("dieAt", 0);
+			node.restore(entry.optString("ip", null), entry.optInt("port", -1), dieAt == 0 ? 0 : dieAt + skew, now);
+			if(node.dieAt() != 0) {
+				mExpiryWheel.add(node);
+				registered.add(node);
+			}
+		}
+		if(full) {
+			// a full transfer lists every registration, so any other is gone
+			for(DDNSNode node : nodeIndex.values()) {
+				if(node.dieAt() != 0 && !registered.contains(node)) node.restore(null, -1, 0, now);
+			}
+		}
+
+		synchronized(mTransferLock) {
+			mSerial = response.getLong("serial");
+		}
+		mServers = response.optJSONArray("servers");
+	}
+
+	// a secondary's registrations are made at the primary, and reach the secondary in the next transfer
+	private JSONObject forwardToPrimary(String method, JSONObject args) {
+		try {
+			int colon = mPrimary.lastIndexOf(':');
+			return RPCCall.invoke(mPrimary.substring(0, colon), Integer.parseInt(mPrimary.substring(colon+1)), "ddns", method, args);
+		} catch(IOException e) {
+			return ddnsexceptionToJSON(new DDNSRuntimeException("Can't reach primary " + mPrimary + ": " + e.getMessage()));
+		} catch(JSONException e) {
+			return ddnsexceptionToJSON(new DDNSRuntimeException(e.getMessage()));
+		}
+	}
+
+	// a change to a node's registration, as kept in the change log
+	private static class Change {
+		final long serial;
+		final DDNSNode node;
+		Change(long serial, DDNSNode node) {
+			this.serial = serial;
+			this.node = node;
+		}
+	}
+
+	// replication
+	//---------------------------------------------------------------------------
+
 	//check config file node string is of correct format
 	private void checkValidNode(String node) throws DDNSException { 
 		String[] nodeInfo = node.split(":");
@@ -185,26 +614,25 @@ public class DDNSService extends NetLoadableService implements HTTPProviderInter
 	 * @throws DDNSException
 	 */
 	public JSONObject _rpcUnregister(JSONObject args) {
+		if(mPrimary != null) return forwardToPrimary("unregister", args);
 		JSONObject resultJSON = new JSONObject();
 		try {
-			DDNSFullNameInterface name = new DDNSFullName(args.getString("name"));
+			DDNSFullNameInterface name = DDNSFullName.intern(args.getString("name"));
 			String pw = args.getString("password");
 			
-			DDNSNode node;
-			RRType recordType;
-			JSONObject nodeJSON;
-			synchronized(this) {
-				node = nodeLookup(name, true);
-				DDNSRRecord record = node.getRecord();
-				
-				if(node.getName().equals(name))
-					node.unregister(pw);
-				
-				recordType = record.type();
-				
-				nodeJSON = record.marshall();
-				nodeJSON.put("name", node.getName());	
+			DDNSNode node = nodeLookup(name, true);
+			DDNSRRecord record = node.getRecord();
+			if(node.getName().equals(name)) {
+				// journal while holding the node, so the journal has its changes in the order they happened
+				synchronized(node) {
+					record = node.unregister(pw);
+					changed(node);
+				}
 			}
+			RRType recordType = record.type();
+			
+			JSONObject nodeJSON = record.marshall();
+			nodeJSON.put("name", node.getName());	
 			
 			if(recordType == RRType.RRTYPE_CNAME) {
 				resultJSON.put("node", nodeJSON);
@@ -236,27 +664,28 @@ public class DDNSService extends NetLoadableService implements HTTPProviderInter
 	 * @throws DDNSException 
 	 */
 	public JSONObject _rpcRegister(JSONObject args)  {
+		if(mPrimary != null) return forwardToPrimary("register", args);
 		JSONObject resultJSON = new JSONObject();
 		
 		try {
-			DDNSFullNameInterface name = new DDNSFullName(args.getString("name"));
+			DDNSFullNameInterface name = DDNSFullName.intern(args.getString("name"));
 			String ip = args.getString("ip");
 			int port = args.getInt("port");
 			String pw = args.getString("password");
 			
-			DDNSNode node;
-			RRType recordType;
-			JSONObject nodeJSON;
-			synchronized(this) {
-				node = nodeLookup(name, true);
-				DDNSRRecord record = node.getRecord();
-				if(node.getName().equals(name))
-					node.register(ip, port, pw);
-				
-				nodeJSON = record.marshall();
-				nodeJSON.put("name", node.getName());
-				recordType = record.type();
+			DDNSNode node = nodeLookup(name, true);
+			DDNSRRecord record = node.getRecord();
+			if(node.getName().equals(name)) {
+				synchronized(node) {
+					record = node.register(ip, port, pw);
+					changed(node);
+				}
+				mExpiryWheel.add(node);
 			}
+			RRType recordType = record.type();
+			
+			JSONObject nodeJSON = record.marshall();
+			nodeJSON.put("name", node.getName());
 			
 			resultJSON.put("node", nodeJSON);
 			if(recordType == RRType.RRTYPE_CNAME) {
@@ -288,28 +717,264 @@ public class DDNSService extends NetLoadableService implements HTTPProviderInter
 	 * @throws JSONException 
 	 */
 	public JSONObject _rpcResolve(JSONObject args) {
-		JSONObject resultJSON = new JSONObject();
 		try {
-			DDNSFullNameInterface name = new DDNSFullName(args.getString("name"));			
-			synchronized(this) {
-				DDNSNode node = nodeLookup(name);
-				DDNSRRecord record = node.getRecord();
+			String name = args.getString("name");
+			return mRecursive && args.optBoolean("recursive") ? resolveRecursively(name) : withServers(resolve(name));
+		} catch(JSONException e) {
+			return ddnsexceptionToJSON(new DDNSRuntimeException(e.getMessage()));
+		}
+	}
 
-				JSONObject nodeJSON = record.marshall();
-				nodeJSON.put("name", node.getName().toString());			
-				resultJSON.put("node", nodeJSON);
-				if(record.type() == RRType.RRTYPE_CNAME) {
-					resultJSON.put("done", false);
-				} else if(record.type() == RRType.RRTYPE_NS){
-					if(!node.isValid())
-						throw new DDNSNoAddressException(name);
-					resultJSON.put("done", false);
-				} else { //A or SOA
-					if(!node.isValid())
-						throw new DDNSNoAddressException(name);
-					resultJSON.put("done", true);
-				}	
+	/**
+	 * Resolves each of a list of names, as resolve() would, in a single call.  Names outside
+	 * the zone get the same zone exception resolve() would give them, and names delegated to
+	 * another server get their CNAME or NS node, so the caller can follow each one.
+	 *   resolvebatch( {names: [name, ...]} ) => {resulttype: "resolvebatchresult", results: [result, ...]} or errormsg
+	 * <p>
+	 * The results are in the order of the names.
+	 */
+	public JSONObject _rpcResolveBatch(JSONObject args) {
+		try {
+			JSONArray names = args.getJSONArray("names");
+			if(names.length() > mMaxBatch)
+				throw new DDNSRuntimeException("resolvebatch accepts at most " + mMaxBatch + " names");
+			boolean recursive = mRecursive && args.optBoolean("recursive");
+			JSONArray results = new JSONArray();
+			for(int i = 0; i < names.length(); i++) {
+				results.put(recursive ? resolveRecursively(names.getString(i)) : resolve(names.getString(i)));
 			}
+			JSONObject resultJSON = new JSONObject();
+			resultJSON.put("resulttype", "resolvebatchresult");
+			resultJSON.put("results", results);
+			return recursive ? resultJSON : withServers(resultJSON);
+		} catch(DDNSException e) {
+			return ddnsexceptionToJSON(e);
+		} catch(JSONException e) {
+			return ddnsexceptionToJSON(new DDNSRuntimeException(e.getMessage()));
+		}
+	}
+
+	/**
+	 * Sends the zone to a secondary: everything, or just what has changed since the secondary's
+	 * last transfer.
+	 *   transfer( {serial: serial, server: "ip:port", password: password} ) =>
+	 *     {resulttype: "transferresult", zone: name, serial: serial, now: millis, full: boolean,
+	 *      records: [{type, name, alias}, ...], registrations: [{name, ip, port, dieAt}, ...], servers: [...]} or errormsg
+	 * <p>
+	 * serial is the one returned by the secondary's last transfer, or 0.  If the change log still
+	 * reaches back to it, the result is incremental: registrations has the current registration of
+	 * each node that has changed since, or just {name} if it has none.  Otherwise the result is full:
+	 * records lists the zone's nodes, parents first, and registrations has every live one.  dieAt is
+	 * in the primary's clock, which now gives.  server is the address resolvers should use for the
+	 * secondary; password is needed only if ddns.transferpassword is set.
+	 * <p>
+	 * Only the primary answers.  The change log is kept only once a secondary has asked.
+	 */
+	public JSONObject _rpcTransfer(JSONObject args) {
+		try {
+			if(mPrimary != null)
+				throw new DDNSRuntimeException("Transfers are made from the primary, " + mPrimary);
+			if(mTransferPassword != null && !mTransferPassword.equals(args.optString("password", null)))
+				throw new DDNSAuthorizationException(mZoneName);
+			String secondary = args.optString("server", null);
+			if(secondary != null) addSecondary(secondary);
+
+			long since = args.optLong("serial", 0);
+			long serial;
+			List<DDNSNode> changed = null;   // null for a full transfer
+			synchronized(mTransferLock) {
+				if(mChangeLog == null) {
+					mLogBase = mSerial;
+					mChangeLog = new ArrayDeque<Change>();
+				}
+				serial = mSerial;
+				if(since >= mLogBase && since <= serial) {
+					changed = new ArrayList<DDNSNode>();
+					Iterator<Change> it = mChangeLog.descendingIterator();
+					while(it.hasNext()) {
+						Change change = it.next();
+						if(change.serial <= since) break;
+						changed.add(change.node);
+					}
+				}
+			}
+
+			// each node's registration is read after the serial, so it's at least as new as the serial says
+			JSONArray registrations = new JSONArray();
+			JSONObject resultJSON = new JSONObject();
+			if(changed == null) {
+				for(DDNSNode node : mNodeIndex.values()) {
+					if(node.dieAt() != 0) registrations.put(node.storeEntry());
+				}
+				resultJSON.put("records", mRecords);
+			} else {
+				Set<DDNSNode> sent = new HashSet<DDNSNode>();
+				for(DDNSNode node : changed) {
+					if(sent.add(node)) registrations.put(node.storeEntry());
+				}
+			}
+			resultJSON.put("resulttype", "transferresult");
+			resultJSON.put("zone", mZoneName.toString());
+			resultJSON.put("serial", serial);
+			resultJSON.put("now", System.currentTimeMillis());
+			resultJSON.put("full", changed == null);
+			resultJSON.put("registrations", registrations);
+			return withServers(resultJSON);
+		} catch(DDNSException e) {
+			return ddnsexceptionToJSON(e);
+		} catch(JSONException e) {
+			return ddnsexceptionToJSON(new DDNSRuntimeException(e.getMessage()));
+		}
+	}
+
+	/**
+	 * Resolves a name to its final answer, following CNAMEs and NS referrals instead of returning
+	 * them: a name in this zone is looked up here, names in other zones are sent to the server
+	 * they're referred to, and names outside this zone go to the root (ddns.rootserver and
+	 * ddns.rootport), if configured.  Answers from other servers are cached for
+	 * ddns.recursivecachettl millis.  At most ddns.recursionlimit servers are asked, including this one.
+	 * If ddns.maxrecursions resolves are already under way, the name is just looked up here.
+	 */
+	private JSONObject resolveRecursively(String nameStr) {
+		if(!mRecursions.tryAcquire()) return resolve(nameStr);
+		try {
+			return resolveRecursivelyWithPermit(nameStr);
+		} finally {
+			mRecursions.release();
+		}
+	}
+
+	private JSONObject resolveRecursivelyWithPermit(String nameStr) {
+		String name = nameStr;
+		String server = null;    // the server to ask next, as "ip:port", or null for this one
+		try {
+			for(int hop = 0; hop < mRecursionLimit; hop++) {
+				JSONObject response = server == null ? resolve(name) : remoteResolve(server, name);
+				if(response.getString("resulttype").equals("ddnsexception")) {
+					if(server == null && response.getInt("exceptionnum") == 6 && mRootServer != null) {
+						server = mRootServer;   // not in this zone
+						continue;
+					}
+					return response;
+				}
+				if(response.getBoolean("done"))
+					return response;
+				
+				JSONObject node = response.getJSONObject("node");
+				if(node.getString("type").equals("CNAME")) {
+					name = DDNSResolverService.followCNAME(name, node);
+					server = DDNSFullName.intern(name).isDescendantOf(mZoneName) ? null : mRootServer;
+				} else { //NS
+					server = node.getString("ip") + ":" + node.getInt("port");
+				}
+			}
+			return ddnsexceptionToJSON(new DDNSTTLExpiredException(DDNSFullName.intern(nameStr)));
+		} catch(DDNSException e) {
+			return ddnsexceptionToJSON(e);
+		} catch(JSONException e) {
+			return ddnsexceptionToJSON(new DDNSRuntimeException(e.getMessage()));
+		} catch(IOException e) {
+			return ddnsexceptionToJSON(new DDNSRuntimeException("Can't reach DDNS server " + server + ": " + e.getMessage()));
+		}
+	}
+
+	// asks another server to resolve name, or finds its answer in the cache
+	private JSONObject remoteResolve(String server, String name) throws JSONException, IOException {
+		String key = server + " " + name;
+		if(mRecursionCache != null) {
+			JSONObject cached = mRecursionCache.get(key);
+			if(cached != null) return cached;
+		}
+		
+		int colon = server.lastIndexOf(':');
+		JSONObject response = RPCCall.invoke(server.substring(0, colon), Integer.parseInt(server.substring(colon+1)),
+				"ddns", "resolve", new JSONObject().put("name", name));
+		
+		// answers, referrals, no such name and no address can be reused; other errors are worth retrying
+		int exceptionnum = response.optInt("exceptionnum", 0);
+		if(mRecursionCache != null && (exceptionnum == 0 || exceptionnum == 1 || exceptionnum == 2))
+			mRecursionCache.put(key, response);
+		return response;
+	}
+
+	/**
+	 * Listens for resolves sent in UDP datagrams, on the same port number as the RPC service.
+	 * A resolve is answered right on the listening thread: it doesn't block, and it's so short that
+	 * handing it to another thread would cost more than doing it.  If the port can't be had,
+	 * callers just use RPC.
+	 */
+	private void startUDP(int port) {
+		try {
+			mDatagramSocket = new DatagramSocket(port);
+		} catch(SocketException e) {
+			Log.w(TAG, "No UDP resolves: can't listen on port " + port + ": " + e.getMessage());
+			return;
+		}
+		Log.i(TAG, "UDP resolve port = " + mDatagramSocket.getLocalPort());
+		Thread udpThread = new Thread("DDNS UDP") {
+			public void run() {
+				DatagramSocket socket = mDatagramSocket;
+				byte[] buf = new byte[2048];
+				DatagramPacket packet = new DatagramPacket(buf, buf.length);
+				// shutdown() closes the socket, which makes receive() throw
+				while(!socket.isClosed()) {
+					try {
+						packet.setLength(buf.length);
+						socket.receive(packet);
+						byte[] reply = udpReply(new String(buf, 0, packet.getLength(), UTF8), packet.getLength());
+						if(reply != null) socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+					} catch(IOException e) {
+						if(!socket.isClosed()) Log.w(TAG, "UDP resolve: " + e.getMessage());
+					}
+				}
+			}
+		};
+		udpThread.setDaemon(true);
+		udpThread.start();
+	}
+
+	// the reply to a UDP resolve request, no longer than maxLength bytes, or null if it isn't a request
+	// or even the shortest reply is too long
+	private byte[] udpReply(String request, int maxLength) {
+		try {
+			JSONObject args = new JSONObject(request);
+			JSONObject reply = new JSONObject().put("id", args.getInt("id"));
+			if(!args.optBoolean("recursive")) {
+				byte[] bytes = reply.put("result", withServers(resolve(args.getString("name")))).toString().getBytes(UTF8);
+				if(bytes.length <= Math.min(mMaxDatagram, maxLength)) return bytes;
+				reply.remove("result");
+			}
+			byte[] bytes = reply.put("tcp", true).toString().getBytes(UTF8);
+			return bytes.length <= maxLength ? bytes : null;
+		} catch(JSONException e) {
+			Log.d(TAG, "Ignoring malformed UDP resolve request: " + e.getMessage());
+			return null;
+		}
+	}
+
+	// the result of resolving nameStr, or the exception that resolving it caused, as JSON
+	private JSONObject resolve(String nameStr) {
+		JSONObject resultJSON = new JSONObject();
+		try {
+			DDNSFullNameInterface name = DDNSFullName.intern(nameStr);
+			DDNSNode node = nodeLookup(name);
+			// one snapshot of the node's record, so a concurrent register can't change it part way through
+			DDNSRRecord record = node.getRecord();
+
+			JSONObject nodeJSON = record.marshall();
+			nodeJSON.put("name", node.getName().toString());			
+			resultJSON.put("node", nodeJSON);
+			if(record.type() == RRType.RRTYPE_CNAME) {
+				resultJSON.put("done", false);
+			} else if(record.type() == RRType.RRTYPE_NS){
+				if(!DDNSNode.isValid(record))
+					throw new DDNSNoAddressException(name);
+				resultJSON.put("done", false);
+			} else { //A or SOA
+				if(!DDNSNode.isValid(record))
+					throw new DDNSNoAddressException(name);
+				resultJSON.put("done", true);
+			}	
 			resultJSON.put("resulttype", "resolveresult");
 		} catch(DDNSException e) {
 			resultJSON = ddnsexceptionToJSON(e);
@@ -324,52 +989,41 @@ public class DDNSService extends NetLoadableService implements HTTPProviderInter
 		return nodeLookup(name, false);
 	}
 	
+	/**
+	 * Finds the node that answers for name: the node itself if it's in the tree, or else the
+	 * CNAME or NS ancestor it's delegated by.
+	 * <p>
+	 * CNAME and NS nodes never have children, so a name in the tree has no such ancestor
+	 * and is found with one index lookup.  Otherwise the name's ancestors are tried, nearest
+	 * first: the nearest one in the tree must be a CNAME or NS, or the name doesn't exist.
+	 * Names cache their ancestors, so with an interned name none of this allocates.
+	 */
 	private DDNSNode nodeLookup(DDNSFullNameInterface name, boolean suppressNoAddressErrors) throws DDNSException {
+		DDNSNode root = mRoot;
+		if(root == null)
+			throw new DDNSRuntimeException("Zone not yet transferred from primary " + mPrimary);
+		Map<DDNSFullNameInterface, DDNSNode> nodeIndex = mNodeIndex;
+		DDNSNode node = nodeIndex.get(name);
 		
-		DDNSFullNameInterface curAncestor = name;
-		DDNSFullNameInterface emptyName = new DDNSFullName("");
-		while(curAncestor != null && !curAncestor.equals(emptyName)) {
-			if(curAncestor.equals(mRoot.getName()))
-				break;
-			curAncestor = curAncestor.parent();
-		}
-		
-		if(curAncestor == null || curAncestor.equals(emptyName))
-			throw new DDNSZoneException(name, mRoot.getName());
-
-		
-		DDNSNode curNode = mRoot;
-		while(curNode != null) {
+		if(node == null) {
+			if(!name.isDescendantOf(mZoneName))
+				throw new DDNSZoneException(name, root.getName());
 			
-			DDNSRRecord curRecord = curNode.getRecord();
-			if(curNode.getName().equals(name) &&
-					(curRecord.type() == RRType.RRTYPE_A ||
-					curRecord.type() == RRType.RRTYPE_SOA)) { //resolved to A or SOA
-				if(!suppressNoAddressErrors && !curNode.isValid()) {
-					throw new DDNSNoAddressException(name);
-				}
-				return curNode;
-
-			} else if(curRecord.type() == RRType.RRTYPE_CNAME) { //reached CNAME
-				return curNode;
-
-			} else if(curRecord.type() == RRType.RRTYPE_NS) { //reached NS
-				if(!suppressNoAddressErrors && !curNode.isValid()) {
-					throw new DDNSNoAddressException(name);
-				}
-				return curNode;
-			}
-			
-			DDNSFullNameInterface childName = name;
-			while(!childName.parent().equals(curNode.getName())) {
-				childName = childName.parent();
+			// the name's nearest ancestor in the tree.  The zone's root is in the tree, so there is one.
+			DDNSFullNameInterface ancestor = name;
+			while(node == null) {
+				ancestor = ancestor.parent();
+				node = nodeIndex.get(ancestor);
 			}
-			curNode = curNode.getChild(childName);
+			if(node.type() != RRType.RRTYPE_CNAME && node.type() != RRType.RRTYPE_NS)
+				throw new DDNSNoSuchNameException(name);
 		}
-
-		throw new DDNSNoSuchNameException(name);
+		
+		if(node.type() != RRType.RRTYPE_CNAME && !suppressNoAddressErrors && !node.isValid())
+			throw new DDNSNoAddressException(name);
+		return node;
 	}
-
+	
 	private JSONObject ddnsexceptionToJSON(DDNSException ex) {
 		JSONObject result = new JSONObject();
 		try {
@@ -410,37 +1064,85 @@ public class DDNSService extends NetLoadableService implements HTTPProviderInter
 	// RPC callable routines
 	//---------------------------------------------------------------------------
 
+	/**
+	 * Reports how many names have a live registration.  Expired registrations have already
+	 * been dropped by the expiry wheel, so this is just a count.
+	 */
 	@Override
 	public String dumpState() {
-		return "whatever you'd like";
+		int nNodes = 0;
+		int nAddressed = 0;
+		int nLive = 0;
+		for(DDNSNode node : mNodeIndex.values()) {
+			nNodes++;
+			if(node.type() == RRType.RRTYPE_CNAME) continue;
+			nAddressed++;
+			if(node.isValid()) nLive++;
+		}
+		long serial;
+		synchronized(mTransferLock) {
+			serial = mSerial;
+		}
+		return "nodes: " + nNodes + "  with addresses: " + nAddressed +
+				"  live: " + nLive + "  unregistered or expired: " + (nAddressed - nLive) +
+				"  expirations: " + (mExpiryWheel == null ? 0 : mExpiryWheel.expirations()) +
+				(mPrimary != null ? "\nsecondary of " + mPrimary + "  serial: " + serial :
+				 mChangeLog != null ? "\nprimary  serial: " + serial + "  secondaries: " + mSecondaries.keySet() : "");
 	}
 
 
 	// private classes for DDNS Tree and unregistering cleanup 
 	//---------------------------------------------------------------------------
+	/**
+	 * A node of the name tree.  Lookups don't lock: everything a lookup reads is either
+	 * immutable or an immutable object reached through a volatile field.
+	 * <ul>
+	 * <li>The node's current record and its expiration time are a Binding, replaced as a whole
+	 *     by register(), unregister() and expire(), so a reader sees an address and port from the same
+	 *     registration.  Records in a Binding are never modified.  Lookups don't check the time:
+	 *     the ExpiryWheel calls expire() once a registration's lifetime is up.
+	 * <li>The children map is copy-on-write.  It's only written while the tree is built, but adding
+	 *     a child never disturbs a concurrent lookup.
+	 * </ul>
+	 */
 	private static class DDNSNode {
 		public static final int REG_LIFETIME = NetBase.theNetBase().config().getAsInt("ddns.registerlifetime", 15, TAG); //seconds
-		private DDNSFullNameInterface nFullname;
-		private String nPassword;
-		private DDNSRRecord nRecord;
-		private long nDieAt; //die at this time, time in millis
-		private Map<DDNSFullNameInterface, DDNSNode> nChildren = new HashMap<DDNSFullNameInterface, DDNSNode>();
+		private final DDNSFullNameInterface nFullname;
+		private final String nPassword;
+		private final DDNSRRecord nUnbound;   // the record when no address is registered, or the registration has expired
+		private volatile Binding nBinding;
+		private volatile Map<DDNSFullNameInterface, DDNSNode> nChildren = new HashMap<DDNSFullNameInterface, DDNSNode>();
+
+		private static class Binding {
+			final DDNSRRecord record;
+			final long dieAt; //die at this time, time in millis
+			Binding(DDNSRRecord record, long dieAt) {
+				this.record = record;
+				this.dieAt = dieAt;
+			}
+		}
 
 		public DDNSNode(DDNSFullNameInterface fullname, String pw, DDNSRRecord record) { 
 			nFullname = fullname;
-			nRecord = record;
-			nDieAt =  System.currentTimeMillis() + REG_LIFETIME*1000;
+			nUnbound = record;
+			nBinding = new Binding(record, 0);
 			nPassword = pw;
 		}
 
-		public void addChild(DDNSNode child) {
-			nChildren.put(child.getName(), child);
+		public synchronized void addChild(DDNSNode child) {
+			Map<DDNSFullNameInterface, DDNSNode> children = new HashMap<DDNSFullNameInterface, DDNSNode>(nChildren);
+			children.put(child.getName(), child);
+			nChildren = children;
 		}
 
 		public DDNSFullNameInterface getName() {
 			return nFullname;
 		}
 
+		public RRType type() {
+			return nUnbound.type();
+		}
+
 		public boolean hasChild(DDNSFullNameInterface childName) {
 			return nChildren.containsKey(childName);
 		}
@@ -449,33 +1151,111 @@ public class DDNSService extends NetLoadableService implements HTTPProviderInter
 			return nChildren.get(childName);
 		}
 
+		/**
+		 * Returns the node's current record.  It isn't modified later, so it can be used
+		 * without holding any lock.  Once a registration expires, this is the record with no address.
+		 */
 		public DDNSRRecord getRecord() {
-			if(!this.isValid() && nRecord instanceof ARecord)
-				((ARecord) nRecord).updateAddress(null, -1);
-			return nRecord;
+			return nBinding.record;
+		}
+
+		/**
+		 * The time the current registration expires, in millis, or 0 if there isn't one.
+		 */
+		public long dieAt() {
+			Binding binding = nBinding;
+			return binding.record == nUnbound ? 0 : binding.dieAt;
+		}
+
+		/**
+		 * Drops the registration if it has expired by now.
+		 * @return true if it had
+		 */
+		public synchronized boolean expire(long now) {
+			Binding binding = nBinding;
+			if(binding.record == nUnbound || binding.dieAt > now) return false;
+			nBinding = new Binding(nUnbound, 0);
+			return true;
 		}
 
-		public void register(String ip, int port, String pw) throws DDNSException {
+		/**
+		 * Sets the address of this node, if it has one, and returns the resulting record.
+		 */
+		public synchronized DDNSRRecord register(String ip, int port, String pw) throws DDNSException {
 			if(!pw.equals(nPassword)) {
 				throw new DDNSAuthorizationException(nFullname);
-			} else if(nRecord instanceof ARecord) {
-				((ARecord) nRecord).updateAddress(ip, port);
-				nDieAt = System.currentTimeMillis() + REG_LIFETIME*1000;
+			} else if(nUnbound instanceof ARecord) {
+				DDNSRRecord record = ip == null ? nUnbound : bind(ip, port);
+				nBinding = new Binding(record, ip == null ? 0 : System.currentTimeMillis() + REG_LIFETIME*1000);
+				return record;
+			}
+			return nUnbound;
+		}
+		
+		/**
+		 * The node's registration, as kept by DDNSZoneStore: {name, ip, port, dieAt},
+		 * or just {name} if it has none.
+		 */
+		public JSONObject storeEntry() throws JSONException {
+			Binding binding = nBinding;
+			JSONObject entry = new JSONObject().put("name", nFullname.toString());
+			if(binding.record != nUnbound) {
+				ARecord record = (ARecord)binding.record;
+				entry.put("ip", record.ip()).put("port", record.port()).put("dieAt", binding.dieAt);
 			}
+			return entry;
+		}
+
+		/**
+		 * The node itself, as sent to secondaries: {type, name}, plus alias for a CNAME.
+		 * The password isn't sent.
+		 */
+		public JSONObject recordEntry() throws DDNSException {
+			try {
+				JSONObject entry = new JSONObject().put("type", type().toString()).put("name", nFullname.toString());
+				if(nUnbound instanceof CNAMERecord) entry.put("alias", ((CNAMERecord)nUnbound).alias().toString());
+				return entry;
+			} catch(JSONException e) {
+				throw new DDNSRuntimeException(e.getMessage());
+			}
+		}
+
+		/**
+		 * Sets the node's registration to one read from the store.  It's dropped if it has
+		 * already expired, or if ip is null.
+		 */
+		public synchronized void restore(String ip, int port, long dieAt, long now) {
+			if(!(nUnbound instanceof ARecord)) return;
+			if(ip == null || dieAt <= now) nBinding = new Binding(nUnbound, 0);
+			else nBinding = new Binding(bind(ip, port), dieAt);
 		}
 		
-		public void unregister(String pw) throws DDNSException {
-			this.register(null, -1, pw);
+		public DDNSRRecord unregister(String pw) throws DDNSException {
+			return this.register(null, -1, pw);
+		}
+
+		// a new record of this node's type, with the given address
+		private DDNSRRecord bind(String ip, int port) {
+			switch(nUnbound.type()) {
+			case RRTYPE_SOA: return new SOARecord(ip, port);
+			case RRTYPE_NS: return new NSRecord().updateAddress(ip, port);
+			default: return new ARecord(ip, port);
+			}
 		}
 		
 		public boolean isValid() {
-			if(nRecord instanceof ARecord) {
-				return nDieAt > System.currentTimeMillis() &&
-						((ARecord) nRecord).mIP != null;
+			return isValid(getRecord());
+		}
+		
+		/**
+		 * True if the record, as returned by getRecord(), can be used: it's a CNAME, or it has an address.
+		 */
+		public static boolean isValid(DDNSRRecord record) {
+			if(record instanceof ARecord) {
+				return ((ARecord) record).ip() != null;
 			} else {
 				return true;
 			}
-			
 		}
 		
 		public String toString() {
@@ -484,9 +1264,10 @@ public class DDNSService extends NetLoadableService implements HTTPProviderInter
 				result.put("Fullname", this.getName().toString());
 				result.put("Password", this.nPassword);
 				result.put("Record", this.getRecord());
-				if(this.nChildren.size() > 0) {
+				Map<DDNSFullNameInterface, DDNSNode> nodeChildren = nChildren;
+				if(nodeChildren.size() > 0) {
 					JSONArray children = new JSONArray();
-					for(DDNSFullNameInterface child : nChildren.keySet()) {
+					for(DDNSFullNameInterface child : nodeChildren.keySet()) {
 						children.put(child.toString());
 					}
 					result.put("Children", children);
@@ -500,4 +1281,78 @@ public class DDNSService extends NetLoadableService implements HTTPProviderInter
 			return null;
 		}
 	}
+	/**
+	 * A hashed timing wheel that expires registrations.  Each slot holds the nodes whose
+	 * registrations expire during one tick; a scheduled task visits a slot per tick and expires what's in it.
+	 * The wheel has a slot for every tick of a registration's lifetime, plus two, so a registration
+	 * always lands in a slot that won't be visited until its time is up.
+	 * <p>
+	 * Nodes aren't removed from their old slot when they're registered again.  When the old slot
+	 * comes around, expire() sees the newer registration and leaves it alone.
+	 * <p>
+	 * A registration can outlive its lifetime by up to a tick.
+	 */
+	private static class ExpiryWheel {
+		private final long mTick;                // millis
+		private final List<Set<DDNSNode>> mSlots;
+		private long mNextTick;                  // the next tick to process, as time/mTick
+		private final AtomicLong mExpirations = new AtomicLong();
+		private final ScheduledFuture<?> mTask;
+
+		ExpiryWheel(long tick, NetScheduler scheduler) {
+			mTick = tick;
+			int nSlots = (int)((DDNSNode.REG_LIFETIME*1000L + tick - 1) / tick) + 2;
+			mSlots = new ArrayList<Set<DDNSNode>>(nSlots);
+			for(int i = 0; i < nSlots; i++)
+				mSlots.add(Collections.newSetFromMap(new ConcurrentHashMap<DDNSNode, Boolean>()));
+			mNextTick = System.currentTimeMillis() / mTick;
+
+			mTask = scheduler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					advance(System.currentTimeMillis());
+				}
+			}, mTick, mTick);
+		}
+
+		/**
+		 * Schedules the node's current registration to expire.
+		 */
+		void add(DDNSNode node) {
+			long dieAt = node.dieAt();
+			if(dieAt == 0) return;
+			long tick = (dieAt + mTick - 1) / mTick;
+			mSlots.get((int)(tick % mSlots.size())).add(node);
+		}
+
+		// visits the slots of all ticks that have passed, expiring their nodes
+		private void advance(long now) {
+			long lastTick = now / mTick;
+			// if we've fallen a whole revolution behind, every slot is due: visit each once
+			if(lastTick - mNextTick >= mSlots.size()) mNextTick = lastTick - mSlots.size() + 1;
+			for( ; mNextTick <= lastTick; mNextTick++) {
+				Iterator<DDNSNode> it = mSlots.get((int)(mNextTick % mSlots.size())).iterator();
+				while(it.hasNext()) {
+					DDNSNode node = it.next();
+					long dieAt = node.dieAt();
+					if(dieAt > now) {
+						// registered again, and scheduled in another slot -- unless the wheel fell
+						// behind and that slot is this one
+						if((dieAt + mTick - 1) / mTick % mSlots.size() == mNextTick % mSlots.size()) continue;
+					} else if(node.expire(now)) {
+						mExpirations.incrementAndGet();
+					}
+					it.remove();
+				}
+			}
+		}
+
+		long expirations() {
+			return mExpirations.get();
+		}
+
+		void cancel() {
+			mTask.cancel(false);
+		}
+	}
 }
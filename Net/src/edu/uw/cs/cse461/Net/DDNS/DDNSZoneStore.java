@@ -0,0 +1,144 @@
+package edu.uw.cs.cse461.Net.DDNS;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Keeps a zone's registrations on local disk, so a restarted name server can answer with them
+ * right away instead of waiting for every host to register again.
+ * <p>
+ * There are two files in the store's directory, both a JSON object per line:
+ * <ul>
+ * <li>The journal: every register and unregister, appended as it happens.
+ * <li>The snapshot: one entry for each registration that was live when it was taken.
+ * </ul>
+ * At startup the snapshot and then the journal are read back, in that order.  A new snapshot
+ * is written then and whenever the journal reaches a set length, after which the journal starts
+ * over empty.  The snapshot is written to a temporary file and renamed into place, so there is
+ * always a complete one.  A journal line cut short by a crash is ignored.
+ * <p>
+ * Entries are {name, ip, port, dieAt} for a registration, where dieAt is when it expires
+ * in wall clock millis, and just {name} for an unregistration.
+ */
+class DDNSZoneStore {
+	private static final String TAG="DDNSZoneStore";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File mJournalFile;
+	private final File mSnapshotFile;
+	private final int mSnapshotInterval;   // journal entries between snapshots
+	private final boolean mSync;           // force each journal entry to the disk before going on
+	private FileOutputStream mJournal = null;
+	private int mJournalLength = 0;
+
+	/**
+	 * @param dir The directory for the files, created if necessary
+	 * @param zoneName The zone, used to name the files
+	 * @param snapshotInterval The number of journal entries that triggers a new snapshot
+	 * @param sync If true, each journal entry is on the disk before append() returns,
+	 *     not just handed to the operating system
+	 */
+	DDNSZoneStore(File dir, DDNSFullNameInterface zoneName, int snapshotInterval, boolean sync) throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create DDNS store directory " + dir);
+		mJournalFile = new File(dir, "ddns-" + zoneName + "journal");
+		mSnapshotFile = new File(dir, "ddns-" + zoneName + "snapshot");
+		mSnapshotInterval = snapshotInterval;
+		mSync = sync;
+	}
+
+	/**
+	 * Reads the stored entries, oldest first.
+	 */
+	synchronized List<JSONObject> load() throws IOException {
+		List<JSONObject> entries = new ArrayList<JSONObject>();
+		read(mSnapshotFile, entries);
+		read(mJournalFile, entries);
+		return entries;
+	}
+
+	private void read(File file, List<JSONObject> entries) throws IOException {
+		if(!file.exists()) return;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.isEmpty()) continue;
+				try {
+					entries.add(new JSONObject(line));
+				} catch (JSONException e) {
+					// only the last line can be damaged, by a crash while it was written
+					Log.w(TAG, "Ignoring the rest of " + file + ": " + e.getMessage());
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Adds an entry to the journal.
+	 * @return true if the journal is long enough that it's time for a snapshot
+	 */
+	synchronized boolean append(JSONObject entry) throws IOException {
+		if(mJournal == null) mJournal = new FileOutputStream(mJournalFile, true);
+		// one write per entry, so a crash can only cut off the last one
+		mJournal.write((entry.toString() + "\n").getBytes(UTF8));
+		if(mSync) mJournal.getFD().sync();
+		return ++mJournalLength >= mSnapshotInterval;
+	}
+
+	/**
+	 * Replaces the snapshot with the given entries, and empties the journal.  The caller makes sure
+	 * every change journaled so far is reflected in the entries.
+	 */
+	synchronized void snapshot(List<JSONObject> entries) throws IOException {
+		File tmpFile = new File(mSnapshotFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		try {
+			Writer writer = new OutputStreamWriter(out, UTF8);
+			for(JSONObject entry : entries) {
+				writer.write(entry.toString());
+				writer.write('\n');
+			}
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if(!tmpFile.renameTo(mSnapshotFile)) {
+			// some file systems won't rename over an existing file
+			mSnapshotFile.delete();
+			if(!tmpFile.renameTo(mSnapshotFile)) throw new IOException("Can't rename " + tmpFile + " to " + mSnapshotFile);
+		}
+
+		close();
+		mJournal = new FileOutputStream(mJournalFile, false);
+		mJournalLength = 0;
+	}
+
+	synchronized void close() {
+		if(mJournal == null) return;
+		try {
+			mJournal.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Closing journal: " + e.getMessage());
+		}
+		mJournal = null;
+	}
+}
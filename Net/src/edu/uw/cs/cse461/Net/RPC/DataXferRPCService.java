@@ -1,6 +1,8 @@
 package edu.uw.cs.cse461.Net.RPC;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -8,7 +10,6 @@ import org.json.JSONObject;
 
 import edu.uw.cs.cse461.Net.Base.NetBase;
 import edu.uw.cs.cse461.Net.Base.NetLoadable.NetLoadableService;
-import edu.uw.cs.cse461.util.Base64;
 
 /**
  * A simple service that simply echoes back whatever it is sent.
@@ -94,8 +95,37 @@ public class DataXferRPCService extends NetLoadableService  {
 			throw new IllegalArgumentException("xferLength cannot be negative");
 		}
 		
+		// the data is streamed, so neither side ever holds all of it (see RPCService)
 		JSONObject result = new JSONObject();
-		result.put("data", Base64.encodeBytes(new byte[len]));
+		result.put("data", new ZeroInputStream(len));
 		return result;
 	}
+	
+	/**
+	 * A stream of len zero bytes.
+	 */
+	private static class ZeroInputStream extends InputStream {
+		private int mRemaining;
+		
+		ZeroInputStream(int len) {
+			mRemaining = len;
+		}
+		
+		@Override
+		public int read() {
+			if(mRemaining <= 0) return -1;
+			mRemaining--;
+			return 0;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(len == 0) return 0;
+			if(mRemaining <= 0) return -1;
+			int n = Math.min(len, mRemaining);
+			Arrays.fill(b, off, off + n, (byte)0);
+			mRemaining -= n;
+			return n;
+		}
+	}
 }
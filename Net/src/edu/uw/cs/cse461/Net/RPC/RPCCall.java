@@ -1,19 +1,23 @@
 package edu.uw.cs.cse461.Net.RPC;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.Socket;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.Net.Base.NetBase;
 import edu.uw.cs.cse461.Net.Base.NetLoadable.NetLoadableService;
-import edu.uw.cs.cse461.Net.TCPMessageHandler.TCPMessageHandler;
-import edu.uw.cs.cse461.util.IPFinder;
+import edu.uw.cs.cse461.util.Base64;
 import edu.uw.cs.cse461.util.Log;
 
 /**
@@ -26,14 +30,21 @@ import edu.uw.cs.cse461.util.Log;
  * (What you might think of as the actual remote call code is in RCPCallerSocket.java.)
  * Implementing persistence requires keeping a cache that must be cleaned periodically.
  * We do that using a cleaner thread.
+ * <p>
+ * invokeAsync() is the asynchronous alternative.  Its calls are pipelined: many can be outstanding
+ * on one connection at a time (see RPCPipeline.java).
+ * <p>
+ * A remote method may stream its result (see RPCService).  invoke() then returns as soon as the
+ * response message arrives, with an InputStream in the value, and the connection is tied up until
+ * the caller has read that stream to its end or closed it.  Use getStream() to read it.
  * 
  * @author zahorjan
  *
  */
 public class RPCCall extends NetLoadableService {
 	private static final String TAG="RPCCall";
-	private static int mId = 0;
 	private static final int MAX_READ_SIZE = RPCService.MAX_READ_SIZE; //bytes
+	private static final int PIPELINE_IDLE_MARGIN = 2000; //millis
 	
 	//-------------------------------------------------------------------------------------------
 	//-------------------------------------------------------------------------------------------
@@ -63,20 +74,107 @@ public class RPCCall extends NetLoadableService {
 		if ( rpcCallObj == null ) throw new IOException("RPCCall.invoke() called but the RPCCall service isn't loaded");
 		return rpcCallObj._invoke(ip, port, serviceName, method, userRequest, true);
 	}
+	
+	/**
+	 * Asynchronous version of invoke().  Sends the request and returns immediately.  Calls made to the same
+	 * ip:port share one connection, with any number of requests outstanding on it at once; replies are matched
+	 * to requests by their callid.
+	 * @return A Future whose get() returns whatever the remote method returns.  If the call fails, get() throws
+	 *         an ExecutionException whose cause is the IOException or JSONException invoke() would have thrown.
+	 * @throws JSONException
+	 * @throws IOException The request couldn't be sent.
+	 */
+	public static Future<JSONObject> invokeAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest    // arguments to send to remote method
+			) throws JSONException, IOException {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) throw new IOException("RPCCall.invokeAsync() called but the RPCCall service isn't loaded");
+		RPCPipeline.RPCFuture future = new RPCPipeline.RPCFuture(serviceName, method, userRequest);
+		rpcCallObj.sendAsync(ip, port, future, true);
+		return future;
+	}
+	
+	/**
+	 * Returns a binary field of the value returned by a remote method.  A method returns binary data by
+	 * putting a byte[] or ByteBuffer in its return value.  The bytes arrive as a raw attachment, or, from
+	 * a remote side that doesn't send attachments, as a Base64 string.  This handles both.
+	 * @throws JSONException The field is missing.
+	 * @throws IOException The field is a string, but not valid Base64.
+	 */
+	public static byte[] getBinary(JSONObject value, String key) throws JSONException, IOException {
+		Object field = value.get(key);
+		if ( field instanceof byte[] ) return (byte[])field;
+		if ( field instanceof InputStream ) {
+			InputStream stream = (InputStream)field;
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buf = new byte[RPCService.STREAM_CHUNK_SIZE];
+				int n;
+				while ( (n = stream.read(buf)) >= 0 ) out.write(buf, 0, n);
+				return out.toByteArray();
+			} finally {
+				stream.close();
+			}
+		}
+		return Base64.decode(value.getString(key));
+	}
+	
+	/**
+	 * Returns a binary field of the value returned by a remote method as a stream.  If the remote method streamed
+	 * it, the bytes are read off the connection as the caller reads them.  Otherwise they're already in memory.
+	 * Either way, the caller must read the stream to its end or close it.
+	 * @throws JSONException The field is missing.
+	 * @throws IOException The field is a string, but not valid Base64.
+	 */
+	public static InputStream getStream(JSONObject value, String key) throws JSONException, IOException {
+		Object field = value.get(key);
+		if ( field instanceof InputStream ) return (InputStream)field;
+		return new ByteArrayInputStream(getBinary(value, key));
+	}
 	//-------------------------------------------------------------------------------------------
 	//-------------------------------------------------------------------------------------------
 
 	
+	/**
+	 * Idle persistent connections, keyed by "ip:port".  A connection is in the cache only while
+	 * no call is using it.
+	 */
+	private HashMap<String, LinkedList<RPCCallerSocket>> mConnectionCache = new HashMap<String, LinkedList<RPCCallerSocket>>();
+	private boolean mWantPersistent;     // whether to ask remote sides to keep connections open
+	private int mIdleTimeout;            // millis an idle persistent connection is kept before being closed
+	private int mMaxIdlePerDest;         // max idle connections cached per ip:port
+	private ScheduledFuture<?> mCleanerTask;   // periodically closes connections that have been idle too long
+	private int mPipelineIdleTimeout;    // millis an idle pipeline is kept; a little less than mIdleTimeout
+	
+	/**
+	 * Connections used by invokeAsync(), keyed by "ip:port".  Each may be carrying several calls at once.
+	 */
+	private HashMap<String, RPCPipeline> mPipelines = new HashMap<String, RPCPipeline>();
+	
 	/**
 	 * The infrastructure requires a public constructor taking no arguments.  Plus, we need a constructor.
 	 */
 	public RPCCall() {
 		super("rpccall", true);
+		mWantPersistent = NetBase.theNetBase().config().getAsInt("rpc.persistence", 1, 0, 1, TAG) != 0;
+		mIdleTimeout = NetBase.theNetBase().config().getAsInt("rpc.persistence.timeout", 20, 1, TAG)*1000; //convert from seconds to millis
+		mMaxIdlePerDest = NetBase.theNetBase().config().getAsInt("rpc.persistence.maxidle", 4, 1, TAG);
+		// a pipeline closes itself, so it gives up a margin early to stay ahead of the remote side
+		mPipelineIdleTimeout = Math.max(mIdleTimeout - PIPELINE_IDLE_MARGIN, mIdleTimeout/2);
+		
+		long period = Math.max(mIdleTimeout/2, 500);
+		mCleanerTask = NetBase.theNetBase().scheduler().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				cleanCache(System.currentTimeMillis() - mIdleTimeout);
+			}
+		}, period, period);
 	}
 
-	private synchronized int incId() {
-		return mId++;
-	}
 	/**
 	 * This private method performs the actual invocation, including the management of persistent connections.
 	 * 
@@ -98,98 +196,195 @@ public class RPCCall extends NetLoadableService {
 			boolean tryAgain          // true if an invocation failure on a persistent connection should cause a re-try of the call, false to give up
 			) throws JSONException, IOException {
 		
-		Socket socket = null;
-		TCPMessageHandler tcpMsgHandler = null;
+		RPCCallerSocket socket = getConnection(ip, port);
+		RPCCallerSocket.RPCResponse rpcReturn;
 		try {
-			// create tcp socket to connect with
-			
-			socket = new Socket(ip, port);
-			
-			int socketTimeout = NetBase.theNetBase().config().getAsInt("rpc.timeout", 30, TAG)*1000; //convert from seconds to millis
-			socket.setSoTimeout(socketTimeout);
-			tcpMsgHandler = new TCPMessageHandler(socket);
-			tcpMsgHandler.setMaxReadLength(MAX_READ_SIZE);
-			
-			// increment mId
-			int id = incId();
-			
-			// send handshake
-			JSONObject handshake = new JSONObject();
-			handshake.put("id", id);
-			handshake.put("host", IPFinder.getMyIP());
-			handshake.put("action", "connect");
-			handshake.put("type", "control");
-			tcpMsgHandler.sendMessage(handshake);
-			
-			
-			// read and validate handshake response from server
-			JSONObject handshakeResponse = tcpMsgHandler.readMessageAsJSONObject();
+			rpcReturn = socket.invoke(serviceName, method, userRequest);
+		} catch (IOException e) {
+			closeConnection(socket);
+			// a cached connection may have been closed by the remote side while it sat idle,
+			// so give the call one more chance on a brand new connection.  A timeout means the
+			// remote side is slow, not gone, and it may still run the call, so that's never re-tried.
+			if ( tryAgain && !(e instanceof SocketTimeoutException) && socket.failedWhileStale() ) {
+				Log.d(TAG, "Invocation on persistent connection to " + ip + ":" + port + " failed.  Retrying.");
+				return _invoke(ip, port, serviceName, method, userRequest, false);
+			}
+			throw e;
+		} catch (JSONException e) {
+			closeConnection(socket);
+			throw e;
+		}
+		
+		String streamKey = rpcReturn.msg.optString(RPCService.STREAM_KEY, null);
+		if ( streamKey == null ) {
+			// the exchange completed, so the connection is still usable whatever the outcome of the call
+			releaseConnection(socket);
 			
-			// if this is an ERROR message, throw exception passing along the given error message
-			if (handshakeResponse.getString("type").equals("ERROR")) {
-				String msg = null;
-				try {
-					msg = handshakeResponse.getString("msg");
-				} catch(JSONException e) {
-					msg = handshakeResponse.getString("message");
+			RPCCallerSocket.checkResponse(rpcReturn.msg, rpcReturn.id, "Error invoking remote procedure.");
+			return rpcReturn.msg.getJSONObject("value");
+		}
+		
+		// the result's stream follows on this connection, which is released once the caller has read all of it
+		try {
+			RPCCallerSocket.checkResponse(rpcReturn.msg, rpcReturn.id, "Error invoking remote procedure.");
+			JSONObject value = rpcReturn.msg.getJSONObject("value");
+			value.put(streamKey, new RPCResponseStream(this, socket));
+			return value;
+		} catch (IOException e) {
+			closeConnection(socket);
+			throw e;
+		} catch (JSONException e) {
+			closeConnection(socket);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Called by an RPCResponseStream when it's done with its connection.  If complete is true, the whole
+	 * stream was read, so the connection can be reused; otherwise it has unread chunks on it, and must be closed.
+	 */
+	void streamDone(RPCCallerSocket socket, boolean complete) {
+		if ( complete ) releaseConnection(socket);
+		else closeConnection(socket);
+	}
+	
+	/**
+	 * Sends future's request on the pipelined connection to ip:port, creating the connection if needed.
+	 */
+	private void sendAsync(
+			String ip,
+			int port,
+			RPCPipeline.RPCFuture future,
+			boolean tryAgain          // true if a failure to send on an existing pipeline should cause a re-try on a new one
+			) throws JSONException, IOException {
+		String key = cacheKey(ip, port);
+		RPCPipeline pipeline;
+		boolean isNew = false;
+		synchronized(mPipelines) {
+			pipeline = mPipelines.get(key);
+		}
+		if ( pipeline == null || !pipeline.isOpen() ) {
+			RPCPipeline created = new RPCPipeline(this, ip, port, mPipelineIdleTimeout);
+			// another thread may have installed a pipeline while this one was connecting; if so, use that one
+			synchronized(mPipelines) {
+				pipeline = mPipelines.get(key);
+				if ( pipeline == null || !pipeline.isOpen() ) {
+					mPipelines.put(key, created);
+					pipeline = created;
+					isNew = true;
 				}
-				throw new IOException(msg);
 			}
-			// if its not an ERROR message must be OK 
-			if (!handshakeResponse.getString("type").equals("OK"))
-				throw new IOException("Error making handshake with connection.");
-			if (handshakeResponse.getInt("callid") != id)
-				throw new JSONException("Received response not intended for this connection.");
-			
-			
-			// if we get here everything is a-ok, so send the rpc request
-			JSONObject request = new JSONObject();
-			id = incId();
-			request.put("id", id);
-			request.put("host", IPFinder.getMyIP());
-			request.put("app", serviceName);
-			request.put("method", method);
-			request.put("args", userRequest);
-			request.put("type", "invoke");
-			tcpMsgHandler.sendMessage(request);
-			
-			
-			// now read and validate the return response from the server
-			JSONObject rpcReturn = tcpMsgHandler.readMessageAsJSONObject();
-			
-			// if this is an ERROR message, throw exception passing along the given error message
-			if (rpcReturn.getString("type").equals("ERROR")) {
-				String msg = null;
-				try {
-					msg = rpcReturn.getString("msg");
-				} catch(JSONException e) {
-					msg = rpcReturn.getString("message");
+			if ( !isNew ) created.close();
+		}
+		try {
+			pipeline.send(future);
+		} catch (IOException e) {
+			synchronized(mPipelines) {
+				if ( mPipelines.get(key) == pipeline ) mPipelines.remove(key);
+			}
+			// the existing connection may have been closed by the remote side; try once on a new one
+			if ( tryAgain && !isNew ) {
+				sendAsync(ip, port, future, false);
+				return;
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Called by a pipeline whose connection ended before future's request was answered.  Sends the
+	 * request again on a new pipeline, or fails the future if that can't be done.
+	 */
+	void resend(String ip, int port, RPCPipeline.RPCFuture future) {
+		try {
+			sendAsync(ip, port, future, false);
+		} catch (Exception e) {
+			future.fail(e);
+		}
+	}
+	
+	private static String cacheKey(String ip, int port) {
+		return ip + ":" + port;
+	}
+	
+	/**
+	 * Returns an idle cached connection to ip:port if there is one, otherwise creates a new one.
+	 */
+	private RPCCallerSocket getConnection(String ip, int port) throws JSONException, IOException {
+		if ( mWantPersistent ) {
+			synchronized(mConnectionCache) {
+				LinkedList<RPCCallerSocket> idle = mConnectionCache.get(cacheKey(ip, port));
+				if ( idle != null && !idle.isEmpty() ) {
+					// most recently used first; it's the least likely to have been timed out by the remote side
+					RPCCallerSocket socket = idle.removeFirst();
+					if ( idle.isEmpty() ) mConnectionCache.remove(cacheKey(ip, port));
+					socket.markReused();
+					return socket;
 				}
-				throw new IOException(msg);
 			}
-			// if its not an ERROR message must be OK 
-			if (!rpcReturn.getString("type").equals("OK"))
-				throw new IOException("Error invoking remote procedure.");
-			if (rpcReturn.getInt("callid") != id)
-				throw new JSONException("Received response not intended for this connection.");
-
-			return rpcReturn.getJSONObject("value");
-		} finally {
-			if(tcpMsgHandler != null) {
-				try {
-					tcpMsgHandler.discard();
-				} catch(Exception e1) {
-					//shouldn't happen
+		}
+		return new RPCCallerSocket(ip, port, mWantPersistent, true);
+	}
+	
+	/**
+	 * Called when a call has finished with a connection.  Persistent connections go back into the cache;
+	 * others are closed.
+	 */
+	private void releaseConnection(RPCCallerSocket socket) {
+		if ( socket.isPersistent() ) {
+			synchronized(mConnectionCache) {
+				String key = cacheKey(socket.remoteIP(), socket.remotePort());
+				LinkedList<RPCCallerSocket> idle = mConnectionCache.get(key);
+				if ( idle == null ) {
+					idle = new LinkedList<RPCCallerSocket>();
+					mConnectionCache.put(key, idle);
+				}
+				if ( idle.size() < mMaxIdlePerDest ) {
+					idle.addFirst(socket);
+					return;
 				}
 			}
-			
-			if(socket != null) {
-				try { 
-					socket.close();
-				} catch (Exception e1) {
-					//shouldn't happen
+		}
+		closeConnection(socket);
+	}
+	
+	private void closeConnection(RPCCallerSocket socket) {
+		try {
+			socket.close();
+		} catch (Exception e) {
+			//shouldn't happen
+		}
+	}
+	
+	/**
+	 * Closes every cached connection last used before the given time (in millis).
+	 */
+	private void cleanCache(long usedBefore) {
+		LinkedList<RPCCallerSocket> toClose = new LinkedList<RPCCallerSocket>();
+		synchronized(mConnectionCache) {
+			Iterator<Map.Entry<String, LinkedList<RPCCallerSocket>>> it = mConnectionCache.entrySet().iterator();
+			while ( it.hasNext() ) {
+				LinkedList<RPCCallerSocket> idle = it.next().getValue();
+				Iterator<RPCCallerSocket> sockIt = idle.iterator();
+				while ( sockIt.hasNext() ) {
+					RPCCallerSocket socket = sockIt.next();
+					if ( socket.lastUsed() < usedBefore ) {
+						sockIt.remove();
+						toClose.add(socket);
+					}
 				}
-			}	
+				if ( idle.isEmpty() ) it.remove();
+			}
+		}
+		// close outside the lock; closing can block
+		for ( RPCCallerSocket socket : toClose ) closeConnection(socket);
+		
+		// pipelines close themselves when idle; just forget the closed ones
+		synchronized(mPipelines) {
+			Iterator<RPCPipeline> pipeIt = mPipelines.values().iterator();
+			while ( pipeIt.hasNext() ) {
+				if ( !pipeIt.next().isOpen() ) pipeIt.remove();
+			}
 		}
 	}
 	
@@ -198,6 +393,12 @@ public class RPCCall extends NetLoadableService {
 	 */
 	@Override
 	public void shutdown() {
+		mCleanerTask.cancel(false);
+		synchronized(mPipelines) {
+			for ( RPCPipeline pipeline : mPipelines.values() ) pipeline.close();
+			mPipelines.clear();
+		}
+		cleanCache(Long.MAX_VALUE);
 	}
 
 	/**
@@ -206,7 +407,23 @@ public class RPCCall extends NetLoadableService {
 	 */
 	@Override
 	public String dumpState() {
-		return "There are no persistent connections.";
+		StringBuilder sb = new StringBuilder();
+		synchronized(mConnectionCache) {
+			if ( mConnectionCache.isEmpty() ) sb.append("There are no persistent connections.\n");
+			else {
+				sb.append("Persistent connections:\n");
+				for ( LinkedList<RPCCallerSocket> idle : mConnectionCache.values() ) {
+					for ( RPCCallerSocket socket : idle ) sb.append("\t").append(socket.toString()).append("\n");
+				}
+			}
+		}
+		synchronized(mPipelines) {
+			if ( !mPipelines.isEmpty() ) {
+				sb.append("Pipelined connections:\n");
+				for ( RPCPipeline pipeline : mPipelines.values() ) sb.append("\t").append(pipeline.toString()).append("\n");
+			}
+		}
+		return sb.toString();
 	}
 
 	private void printMsg(String s) {
@@ -15,12 +15,13 @@ import edu.uw.cs.cse461.util.Log;
  * <p>
  * The parameterized type, T, is the class exposing the method.
  * <p>
- * See the source in EchoRPCService.java for an example of its use.
+ * See the source in EchoRPCService.java for an example of its use.  To avoid the cost of
+ * reflection on each call, implement RPCHandler directly instead.
  * @author zahorjan
  *
  * @param <T>
  */
-public class RPCCallableMethod {
+public class RPCCallableMethod implements RPCHandler {
 	private static final String TAG="RPCCallableMethod";
 	
 	Object service;
@@ -35,6 +36,12 @@ public class RPCCallableMethod {
 		service = serviceObject; 
 		Class<? extends Object> serviceClass = (Class<? extends Object>)service.getClass();
 		method = serviceClass.getMethod(methodName, JSONObject.class);
+		// skip the access check on every call; the method is public, but its class may not be
+		try {
+			method.setAccessible(true);
+		} catch (SecurityException e) {
+			Log.w(TAG, "Can't suppress access checks for " + methodName + ": " + e.getMessage());
+		}
 	}
 	/**
 	 * This method is called to actually invoke the method that handles the RPC.
@@ -42,6 +49,7 @@ public class RPCCallableMethod {
 	 * @return The JSONObject returned by the RPC handling method of the service
 	 * @throws Exception
 	 */
+	@Override
 	public JSONObject handleCall(JSONObject args) throws Exception {
 		try {
 			return (JSONObject)method.invoke(service, args);
@@ -2,27 +2,234 @@ package edu.uw.cs.cse461.Net.RPC;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.Net.Base.NetBase;
+import edu.uw.cs.cse461.Net.TCPMessageHandler.TCPMessageHandler;
+import edu.uw.cs.cse461.util.IPFinder;
 
 /**
  * Implements a Socket to use in sending remote RPC invocations.  (It must engage
  * in the RPC handshake before sending the invocation request.)
+ * <p>
+ * The handshake is performed once, by the constructor.  If the caller asked for a
+ * persistent connection and the remote side agreed to it, the socket can be used
+ * for any number of subsequent invoke() calls.  Otherwise, it's good for exactly one.
+ * <p>
+ * The handshake also tells the remote side we can read binary attachments.  readResponse()
+ * puts each one back into the returned value, as a byte[], under the key it was sent for.
+ * And it offers the encoding named by rpc.encoding (msgpack by default; see RPCEncoding)
+ * for the messages that follow.  If the remote side doesn't accept it, they're JSON.
+ * <p>
+ * If asked to, the handshake also says we can read streamed results.  A response with a stream
+ * is followed by its chunks, which the caller must read with readChunk() before the connection
+ * can be used for anything else.
  * @author zahorjan
  *
  */
  class RPCCallerSocket extends Socket {
 	private static final String TAG = "RPCCallerSocket";
-	
+	private static final String KEEP_ALIVE = "keep-alive";
+	private static int mId = 0;
+
+	private String mRemoteIP;
+	private int mRemotePort;
+	private volatile TCPMessageHandler mMsgHandler;
+	private boolean mIsPersistent = false;  // true if the remote side agreed to keep the connection open
+	private RPCEncoding mEncoding = RPCEncoding.JSON;  // how messages after the handshake are encoded
+	private volatile int mNumCalls = 0;     // number of invocations sent over this connection
+	private volatile long mLastUsed;        // time of last use, in millis
+	private boolean mReused = false;        // true once handed out again from RPCCall's idle cache
+	private boolean mReplyStarted = false;  // true if any of the reply to the latest invoke() arrived
+
 	/**
-	 * This constructor is here just so this class file with have some code, to avoid
-	 * Java or Eclipse complaining.  You should make the constructor whatever you want.
-	 * This class is used only by this package (and, in particular, by RCPCall).  
-	 * The only public inteface is that supported by RPCCall, so you don't have to have this
-	 * class at all if you don't want it.
+	 * Connects to ip:port and performs the RPC handshake.  If wantPersistent is true, asks the
+	 * remote side to keep the connection open after the first invocation.  If wantStreams is true,
+	 * says results can be streamed.
 	 */
-	RPCCallerSocket(String hostname, String ip, int port, boolean wantPersistent) throws IOException, JSONException {
+	RPCCallerSocket(String ip, int port, boolean wantPersistent, boolean wantStreams) throws IOException, JSONException {
 		super(ip, port);
+		mRemoteIP = ip;
+		mRemotePort = port;
+		try {
+			int socketTimeout = NetBase.theNetBase().config().getAsInt("rpc.timeout", 30, TAG)*1000; //convert from seconds to millis
+			setSoTimeout(socketTimeout);
+			setTcpNoDelay(true);
+			mMsgHandler = new TCPMessageHandler(this);
+			mMsgHandler.setMaxReadLength(RPCService.MAX_READ_SIZE);
+
+			// send handshake
+			int id = nextId();
+			JSONObject handshake = new JSONObject();
+			handshake.put("id", id);
+			handshake.put("host", IPFinder.getMyIP());
+			handshake.put("action", "connect");
+			handshake.put("type", "control");
+			JSONObject options = new JSONObject().put(RPCService.ATTACHMENTS_KEY, true);
+			if ( wantPersistent ) options.put("connection", KEEP_ALIVE);
+			if ( wantStreams ) options.put(RPCService.STREAMS_KEY, true);
+			RPCEncoding preferred = RPCEncoding.forName(NetBase.theNetBase().config().getProperty("rpc.encoding", RPCEncoding.MSGPACK.name()));
+			if ( preferred != null && preferred != RPCEncoding.JSON ) options.put(RPCEncoding.ENCODINGS_KEY, new JSONArray().put(preferred.name()));
+			handshake.put(TCPMessageHandler.ADDITIONAL_OPTIONS_KEY, options);
+			mMsgHandler.sendMessage(handshake);
+
+			// read and validate handshake response from server
+			JSONObject handshakeResponse = mMsgHandler.readMessageAsJSONObject();
+			checkResponse(handshakeResponse, id, "Error making handshake with connection.");
+
+			// the server tells us whether or not it's willing to keep the connection open
+			JSONObject value = handshakeResponse.optJSONObject("value");
+			mIsPersistent = wantPersistent && value != null && KEEP_ALIVE.equals(value.optString("connection"));
+			if ( value != null && value.has(RPCEncoding.ENCODING_KEY) ) {
+				mEncoding = RPCEncoding.forName(value.getString(RPCEncoding.ENCODING_KEY));
+				if ( mEncoding == null ) throw new IOException("Remote side chose unknown encoding " + value.getString(RPCEncoding.ENCODING_KEY));
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (JSONException e) {
+			close();
+			throw e;
+		}
+		mLastUsed = System.currentTimeMillis();
+	}
+
+	static synchronized int nextId() {
+		return mId++;
+	}
+
+	/**
+	 * Throws an IOException describing the problem if the response isn't an OK reply to message id.
+	 */
+	static void checkResponse(JSONObject response, int id, String defaultMsg) throws JSONException, IOException {
+		// if this is an ERROR message, throw exception passing along the given error message
+		if (response.getString("type").equals("ERROR")) {
+			String msg = response.optString("msg", null);
+			if ( msg == null ) msg = response.getString("message");
+			throw new IOException(msg);
+		}
+		// if its not an ERROR message must be OK
+		if (!response.getString("type").equals("OK"))
+			throw new IOException(defaultMsg);
+		if (response.getInt("callid") != id)
+			throw new JSONException("Received response not intended for this connection.");
+	}
+
+	/**
+	 * Sends one invocation request and reads the reply.  Transport failures are thrown as IOExceptions;
+	 * an ERROR reply from the remote side is returned to the caller, which must check for it.
+	 * @return The remote side's complete response message, together with the id it should be a reply to.
+	 */
+	synchronized RPCResponse invoke(String serviceName, String method, JSONObject userRequest) throws JSONException, IOException {
+		int id = nextId();
+		TCPMessageHandler msgHandler = msgHandler();
+		long readBefore = msgHandler.bytesRead();
+		mReplyStarted = false;
+		try {
+			sendRequest(id, serviceName, method, userRequest);
+			return new RPCResponse(id, readResponse());
+		} catch (IOException e) {
+			mReplyStarted = msgHandler.bytesRead() != readBefore;
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends an invocation request without waiting for the reply.  Used directly only by RPCPipeline,
+	 * which may have several requests outstanding on the connection at once.
+	 * @param id The message id; the reply will carry it as its callid.
+	 */
+	synchronized void sendRequest(int id, String serviceName, String method, JSONObject userRequest) throws JSONException, IOException {
+		JSONObject request = new JSONObject();
+		request.put("id", id);
+		request.put("host", IPFinder.getMyIP());
+		request.put("app", serviceName);
+		request.put("method", method);
+		request.put("args", userRequest);
+		request.put("type", "invoke");
+		mNumCalls++;
+		mEncoding.sendMessage(msgHandler(), request);
+	}
+
+	/**
+	 * Reads the next reply off the connection, along with any attachments following it.
+	 */
+	JSONObject readResponse() throws JSONException, IOException {
+		JSONObject response = mEncoding.readMessage(msgHandler());
+		JSONArray attachments = response.optJSONArray(RPCService.ATTACHMENTS_KEY);
+		if ( attachments != null ) {
+			JSONObject value = response.getJSONObject("value");
+			for ( int i=0; i<attachments.length(); i++ ) value.put(attachments.getString(i), msgHandler().readMessageAsBytes());
+		}
+		mLastUsed = System.currentTimeMillis();
+		return response;
+	}
+
+	/**
+	 * Reads the next chunk of a streamed result into buf, or a new buffer if buf is null or too small.
+	 * @return The buffer holding the chunk.  An empty chunk marks the end of the stream.
+	 */
+	ByteBuffer readChunk(ByteBuffer buf) throws IOException {
+		buf = msgHandler().readMessage(buf);
+		mLastUsed = System.currentTimeMillis();
+		return buf;
+	}
+
+	private TCPMessageHandler msgHandler() throws IOException {
+		TCPMessageHandler msgHandler = mMsgHandler;
+		if ( msgHandler == null ) throw new IOException("Connection to " + mRemoteIP + ":" + mRemotePort + " is closed");
+		return msgHandler;
+	}
+
+	/**
+	 * True if the remote side agreed to keep this connection open across invocations.
+	 */
+	boolean isPersistent() {
+		return mIsPersistent;
+	}
+
+	/**
+	 * Called when the connection is taken from the idle cache for another call.
+	 */
+	void markReused() {
+		mReused = true;
+	}
+
+	/**
+	 * True if the latest invoke() failed in a way that's worth re-trying on a new connection: this
+	 * connection sat idle in the cache, so the remote side may have closed it, and no part of the
+	 * reply arrived.  Once reply bytes have arrived, the remote side has run the call.
+	 */
+	boolean failedWhileStale() {
+		return mReused && !mReplyStarted;
+	}
+
+	/**
+	 * The number of bytes read off the connection so far, partial messages included.
+	 */
+	long bytesRead() throws IOException {
+		return msgHandler().bytesRead();
+	}
+
+	long lastUsed() {
+		return mLastUsed;
+	}
+
+	String remoteIP() {
+		return mRemoteIP;
+	}
+
+	int remotePort() {
+		return mRemotePort;
+	}
+
+	@Override
+	public String toString() {
+		return mRemoteIP + ":" + mRemotePort + " calls: " + mNumCalls + " idle: " + (System.currentTimeMillis() - mLastUsed)/1000 + "s";
 	}
 
 	/**
@@ -30,6 +237,22 @@ import org.json.JSONException;
 	 */
 	@Override
 	synchronized public void close() throws IOException {
+		// closing the handler's streams closes this socket, which calls back here, so clear the field first
+		TCPMessageHandler msgHandler = mMsgHandler;
+		mMsgHandler = null;
+		if ( msgHandler != null ) msgHandler.discard();
+		super.close();
+	}
+
+	/**
+	 * A response message paired with the id of the request it answers.
+	 */
+	static class RPCResponse {
+		final int id;
+		final JSONObject msg;
+		RPCResponse(int requestId, JSONObject response) {
+			id = requestId;
+			msg = response;
+		}
 	}
-	
 }
@@ -0,0 +1,102 @@
+package edu.uw.cs.cse461.Net.RPC;
+
+import java.io.IOException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.Net.TCPMessageHandler.TCPMessageHandler;
+
+/**
+ * How RPC messages are turned into bytes on the wire.
+ * <p>
+ * The handshake is always JSON.  In it, the caller lists the encodings it can use for the rest of
+ * the connection, most preferred first; the server picks the first one it knows and names it in the
+ * value of its reply.  A server that says nothing has picked JSON, which is what old peers do on both sides.
+ * Attachments (see RPCService) are raw bytes whatever the encoding.
+ * <p>
+ * An encoding converts between a JSONObject and the bytes of a TCPMessageHandler message.  To add one,
+ * subclass this and add it to forName().
+ */
+abstract class RPCEncoding {
+	static final String ENCODINGS_KEY = "encodings";   // handshake option: names of encodings the caller can use
+	static final String ENCODING_KEY = "encoding";     // handshake reply value: name of the one picked
+
+	static final RPCEncoding JSON = new JSONEncoding();
+	static final RPCEncoding MSGPACK = new RPCMsgPackEncoding();
+
+	/**
+	 * Returns the encoding with the given name, or null if there's no such encoding.
+	 */
+	static RPCEncoding forName(String name) {
+		if ( JSON.name().equals(name) ) return JSON;
+		if ( MSGPACK.name().equals(name) ) return MSGPACK;
+		return null;
+	}
+
+	/**
+	 * Picks the encoding the server will use, given the caller's handshake.
+	 */
+	static RPCEncoding choose(JSONObject handshake) {
+		JSONObject options = handshake.optJSONObject(TCPMessageHandler.ADDITIONAL_OPTIONS_KEY);
+		JSONArray offered = options == null ? null : options.optJSONArray(ENCODINGS_KEY);
+		if ( offered == null ) return JSON;
+		for ( int i=0; i<offered.length(); i++ ) {
+			RPCEncoding encoding = forName(offered.optString(i));
+			if ( encoding != null ) return encoding;
+		}
+		return JSON;
+	}
+
+	/**
+	 * The encoding's name, as used in the handshake.
+	 */
+	abstract String name();
+
+	abstract byte[] encode(JSONObject obj) throws JSONException;
+
+	abstract JSONObject decode(byte[] buf, int off, int len) throws JSONException;
+
+	void sendMessage(TCPMessageHandler msgHandler, JSONObject obj) throws JSONException, IOException {
+		msgHandler.sendMessage(encode(obj));
+	}
+
+	JSONObject readMessage(TCPMessageHandler msgHandler) throws JSONException, IOException {
+		byte[] msg = msgHandler.readMessageAsBytes();
+		return decode(msg, 0, msg.length);
+	}
+
+	@Override
+	public String toString() {
+		return name();
+	}
+
+	/**
+	 * The original encoding: the text of the JSON object.
+	 */
+	private static class JSONEncoding extends RPCEncoding {
+		String name() {
+			return "json";
+		}
+
+		byte[] encode(JSONObject obj) {
+			return obj.toString().getBytes();
+		}
+
+		JSONObject decode(byte[] buf, int off, int len) throws JSONException {
+			return new JSONObject(new String(buf, off, len));
+		}
+
+		// the message handler already reads and writes JSON, reusing its buffers
+		@Override
+		void sendMessage(TCPMessageHandler msgHandler, JSONObject obj) throws IOException {
+			msgHandler.sendMessage(obj);
+		}
+
+		@Override
+		JSONObject readMessage(TCPMessageHandler msgHandler) throws JSONException, IOException {
+			return msgHandler.readMessageAsJSONObject();
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package edu.uw.cs.cse461.Net.RPC;
+
+import org.json.JSONObject;
+
+/**
+ * Something that fields calls to one RPC method: it's given the call's args and
+ * returns the value to send back.  Throwing sends the caller an error response.
+ * <p>
+ * Register one with RPCService.registerHandler().  RPCCallableMethod is a handler that
+ * calls a named method of an object by reflection; implementing this interface directly,
+ * say with an anonymous class, calls your code with no reflection at all:
+ * <pre>
+ *   rpcService.registerHandler(loadablename(), "echo", new RPCHandler() {
+ *       public JSONObject handleCall(JSONObject args) throws Exception { return _echo(args); }
+ *   });
+ * </pre>
+ * Handlers are called concurrently, from whichever threads are serving connections.
+ */
+public interface RPCHandler {
+	public JSONObject handleCall(JSONObject args) throws Exception;
+}
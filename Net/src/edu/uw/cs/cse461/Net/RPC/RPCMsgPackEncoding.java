@@ -0,0 +1,271 @@
+package edu.uw.cs.cse461.Net.RPC;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Encodes RPC messages in MessagePack (msgpack.org), a compact binary form of the JSON data model.
+ * Numbers, booleans and lengths are a few bytes of binary rather than text, and decoding needs no
+ * tokenizing, so small messages -- most of what RPC carries -- are both shorter and much cheaper to
+ * produce and parse than their JSON text.
+ * <p>
+ * Everything a JSONObject can hold is supported: objects, arrays, strings, integers, doubles,
+ * booleans and JSONObject.NULL.  Integers decode as Integer if they fit, otherwise Long, as they
+ * would from JSON.  byte[] and ByteBuffer values are encoded as msgpack binaries and decode as byte[].
+ * Anything else is encoded as the string from its toString(), just as JSONObject.toString() does.
+ * Extension types aren't used.
+ */
+class RPCMsgPackEncoding extends RPCEncoding {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	String name() {
+		return "msgpack";
+	}
+
+	byte[] encode(JSONObject obj) throws JSONException {
+		Encoder encoder = new Encoder();
+		encoder.writeObject(obj);
+		return encoder.toByteArray();
+	}
+
+	JSONObject decode(byte[] buf, int off, int len) throws JSONException {
+		Decoder decoder = new Decoder(buf, off, len);
+		Object value = decoder.readValue();
+		if ( !(value instanceof JSONObject) ) throw new JSONException("msgpack message is not a map");
+		if ( decoder.mPos != decoder.mLimit ) throw new JSONException("msgpack message has " + (decoder.mLimit - decoder.mPos) + " trailing bytes");
+		return (JSONObject)value;
+	}
+
+	//-------------------------------------------------------------------------------------------
+
+	private static class Encoder {
+		private byte[] mBuf = new byte[256];
+		private int mPos = 0;
+
+		byte[] toByteArray() {
+			byte[] result = new byte[mPos];
+			System.arraycopy(mBuf, 0, result, 0, mPos);
+			return result;
+		}
+
+		private void ensure(int n) {
+			if ( mPos + n <= mBuf.length ) return;
+			byte[] bigger = new byte[Math.max(mBuf.length*2, mPos + n)];
+			System.arraycopy(mBuf, 0, bigger, 0, mPos);
+			mBuf = bigger;
+		}
+
+		private void put(int b) {
+			ensure(1);
+			mBuf[mPos++] = (byte)b;
+		}
+
+		// a type byte followed by a big-endian integer nBytes long
+		private void put(int type, long v, int nBytes) {
+			ensure(1 + nBytes);
+			mBuf[mPos++] = (byte)type;
+			for ( int shift=(nBytes-1)*8; shift>=0; shift-=8 ) mBuf[mPos++] = (byte)(v >>> shift);
+		}
+
+		// a length, using the 8, 16 or 32 bit form starting at type8.  (type8 is 0 if there's no 8 bit form.)
+		private void putLength(int type8, int type16, int type32, int len) {
+			if ( type8 != 0 && len < 0x100 ) put(type8, len, 1);
+			else if ( len < 0x10000 ) put(type16, len, 2);
+			else put(type32, len, 4);
+		}
+
+		void writeValue(Object v) throws JSONException {
+			if ( v == null || v == JSONObject.NULL ) put(0xc0);
+			else if ( v instanceof String ) writeString((String)v);
+			else if ( v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte ) writeLong(((Number)v).longValue());
+			else if ( v instanceof Number ) put(0xcb, Double.doubleToLongBits(((Number)v).doubleValue()), 8);
+			else if ( v instanceof Boolean ) put(((Boolean)v).booleanValue() ? 0xc3 : 0xc2);
+			else if ( v instanceof JSONObject ) writeObject((JSONObject)v);
+			else if ( v instanceof JSONArray ) writeArray((JSONArray)v);
+			else if ( v instanceof byte[] ) writeBinary((byte[])v, 0, ((byte[])v).length);
+			else if ( v instanceof ByteBuffer ) {
+				ByteBuffer buf = ((ByteBuffer)v).duplicate();
+				byte[] bytes = new byte[buf.remaining()];
+				buf.get(bytes);
+				writeBinary(bytes, 0, bytes.length);
+			}
+			else writeString(v.toString());
+		}
+
+		void writeObject(JSONObject obj) throws JSONException {
+			int n = obj.length();
+			if ( n < 16 ) put(0x80 | n);
+			else putLength(0, 0xde, 0xdf, n);
+			Iterator<?> it = obj.keys();
+			while ( it.hasNext() ) {
+				String key = (String)it.next();
+				writeString(key);
+				writeValue(obj.opt(key));
+			}
+		}
+
+		void writeArray(JSONArray array) throws JSONException {
+			int n = array.length();
+			if ( n < 16 ) put(0x90 | n);
+			else putLength(0, 0xdc, 0xdd, n);
+			for ( int i=0; i<n; i++ ) writeValue(array.opt(i));
+		}
+
+		void writeLong(long v) {
+			if ( v >= 0 ) {
+				if ( v < 0x80 ) put((int)v);
+				else if ( v < 0x100 ) put(0xcc, v, 1);
+				else if ( v < 0x10000 ) put(0xcd, v, 2);
+				else if ( v < 0x100000000L ) put(0xce, v, 4);
+				else put(0xcf, v, 8);
+			} else {
+				if ( v >= -32 ) put((int)v & 0xff);
+				else if ( v >= Byte.MIN_VALUE ) put(0xd0, v, 1);
+				else if ( v >= Short.MIN_VALUE ) put(0xd1, v, 2);
+				else if ( v >= Integer.MIN_VALUE ) put(0xd2, v, 4);
+				else put(0xd3, v, 8);
+			}
+		}
+
+		void writeString(String s) {
+			int n = s.length();
+			boolean ascii = true;
+			for ( int i=0; i<n && ascii; i++ ) ascii = s.charAt(i) < 0x80;
+			if ( !ascii ) {
+				byte[] bytes = s.getBytes(UTF8);
+				writeStringHeader(bytes.length);
+				ensure(bytes.length);
+				System.arraycopy(bytes, 0, mBuf, mPos, bytes.length);
+				mPos += bytes.length;
+				return;
+			}
+			// nearly every string in an RPC message is ASCII: copy it straight in
+			writeStringHeader(n);
+			ensure(n);
+			for ( int i=0; i<n; i++ ) mBuf[mPos++] = (byte)s.charAt(i);
+		}
+
+		private void writeStringHeader(int len) {
+			if ( len < 32 ) put(0xa0 | len);
+			else putLength(0xd9, 0xda, 0xdb, len);
+		}
+
+		void writeBinary(byte[] bytes, int off, int len) {
+			putLength(0xc4, 0xc5, 0xc6, len);
+			ensure(len);
+			System.arraycopy(bytes, off, mBuf, mPos, len);
+			mPos += len;
+		}
+	}
+
+	//-------------------------------------------------------------------------------------------
+
+	private static class Decoder {
+		private final byte[] mBuf;
+		int mPos;
+		final int mLimit;
+
+		Decoder(byte[] buf, int off, int len) {
+			mBuf = buf;
+			mPos = off;
+			mLimit = off + len;
+		}
+
+		private void need(int n) throws JSONException {
+			if ( n < 0 || mLimit - mPos < n ) throw new JSONException("msgpack message is truncated");
+		}
+
+		// a big-endian unsigned integer nBytes long
+		private long get(int nBytes) throws JSONException {
+			need(nBytes);
+			long v = 0;
+			for ( int i=0; i<nBytes; i++ ) v = (v << 8) | (mBuf[mPos++] & 0xff);
+			return v;
+		}
+
+		private int getLength(int nBytes) throws JSONException {
+			long len = get(nBytes);
+			if ( len > Integer.MAX_VALUE ) throw new JSONException("msgpack length too large: " + len);
+			return (int)len;
+		}
+
+		// Integer if it fits, like the JSON parser
+		private static Object number(long v) {
+			if ( v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE ) return Integer.valueOf((int)v);
+			return Long.valueOf(v);
+		}
+
+		Object readValue() throws JSONException {
+			need(1);
+			int b = mBuf[mPos++] & 0xff;
+			if ( b <= 0x7f ) return Integer.valueOf(b);
+			if ( b >= 0xe0 ) return Integer.valueOf((byte)b);
+			if ( b <= 0x8f ) return readObject(b & 0x0f);
+			if ( b <= 0x9f ) return readArray(b & 0x0f);
+			if ( b <= 0xbf ) return readString(b & 0x1f);
+			switch ( b ) {
+			case 0xc0: return JSONObject.NULL;
+			case 0xc2: return Boolean.FALSE;
+			case 0xc3: return Boolean.TRUE;
+			case 0xc4: return readBinary(getLength(1));
+			case 0xc5: return readBinary(getLength(2));
+			case 0xc6: return readBinary(getLength(4));
+			case 0xca: return Double.valueOf(Float.intBitsToFloat((int)get(4)));
+			case 0xcb: return Double.valueOf(Double.longBitsToDouble(get(8)));
+			case 0xcc: return number(get(1));
+			case 0xcd: return number(get(2));
+			case 0xce: return number(get(4));
+			case 0xcf: return number(get(8));    // values above Long.MAX_VALUE wrap; JSONObject can't hold them anyway
+			case 0xd0: return number((byte)get(1));
+			case 0xd1: return number((short)get(2));
+			case 0xd2: return number((int)get(4));
+			case 0xd3: return number(get(8));
+			case 0xd9: return readString(getLength(1));
+			case 0xda: return readString(getLength(2));
+			case 0xdb: return readString(getLength(4));
+			case 0xdc: return readArray(getLength(2));
+			case 0xdd: return readArray(getLength(4));
+			case 0xde: return readObject(getLength(2));
+			case 0xdf: return readObject(getLength(4));
+			default:
+				throw new JSONException("Unsupported msgpack type 0x" + Integer.toHexString(b));
+			}
+		}
+
+		private JSONObject readObject(int n) throws JSONException {
+			JSONObject obj = new JSONObject();
+			for ( int i=0; i<n; i++ ) {
+				Object key = readValue();
+				if ( !(key instanceof String) ) throw new JSONException("msgpack map key is not a string");
+				obj.put((String)key, readValue());
+			}
+			return obj;
+		}
+
+		private JSONArray readArray(int n) throws JSONException {
+			JSONArray array = new JSONArray();
+			for ( int i=0; i<n; i++ ) array.put(readValue());
+			return array;
+		}
+
+		private String readString(int len) throws JSONException {
+			need(len);
+			String s = new String(mBuf, mPos, len, UTF8);
+			mPos += len;
+			return s;
+		}
+
+		private byte[] readBinary(int len) throws JSONException {
+			need(len);
+			byte[] bytes = new byte[len];
+			System.arraycopy(mBuf, mPos, bytes, 0, len);
+			mPos += len;
+			return bytes;
+		}
+	}
+}
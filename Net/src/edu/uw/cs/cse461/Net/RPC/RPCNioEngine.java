@@ -0,0 +1,538 @@
+package edu.uw.cs.cse461.Net.RPC;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.Net.Base.NetBase;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * A non-blocking implementation of the server side of the RPC protocol, selected by rpc.engine=nio.
+ * <p>
+ * A single thread multiplexes every connection with a Selector.  It accepts connections,
+ * reassembles TCPMessageHandler frames (a 4-byte little-endian length followed by that many bytes)
+ * from whatever bytes happen to arrive, answers handshakes itself, and hands each complete
+ * invocation request to RPCService's worker pool.  While a call is running, the connection
+ * isn't read, so requests on one connection are served one at a time and in order, just as
+ * with the blocking engine.  The wire protocol is identical, so callers can't tell the difference.
+ * <p>
+ * An idle connection costs only its buffers, not a thread, so every caller asking for a
+ * persistent connection gets one.  Connections idle for rpc.timeout are closed.
+ * <p>
+ * A streamed result is read on worker threads, a chunk at a time, and only while less than
+ * STREAM_WINDOW bytes of it are waiting to be written, so a slow caller doesn't fill memory.
+ */
+class RPCNioEngine extends Thread {
+	private static final String TAG="RPCNioEngine";
+	private static final int LENGTH_PREFIX_SIZE = 4; //bytes
+	private static final int SWEEP_INTERVAL = 1000;  // millis between checks for idle connections
+	private static final int STREAM_WINDOW = 2*RPCService.STREAM_CHUNK_SIZE;  // max bytes of a stream queued for writing
+
+	private RPCService mService;
+	private ServerSocketChannel mServerChannel;
+	private Selector mSelector;
+	private int mIdleTimeout;                        // millis
+	private volatile boolean mIsUp = true;
+
+	// work handed back by worker threads (finished calls, chunks read from streams), waiting to be run on the selector thread
+	private LinkedList<Runnable> mSelectorTasks = new LinkedList<Runnable>();
+
+	// statistics
+	private int mNumConnections = 0;
+	private long mNumAccepted = 0;
+	private long mNumCalls = 0;
+
+	RPCNioEngine(RPCService service, ServerSocketChannel serverChannel) throws IOException {
+		super("RPCNioEngine");
+		mService = service;
+		mServerChannel = serverChannel;
+		mIdleTimeout = NetBase.theNetBase().config().getAsInt("rpc.timeout", 30, TAG)*1000; //convert from seconds to millis
+		mSelector = Selector.open();
+		mServerChannel.configureBlocking(false);
+		mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Stops the selector thread and closes every connection.
+	 */
+	void shutdown() {
+		mIsUp = false;
+		mSelector.wakeup();
+	}
+
+	synchronized String dumpState() {
+		return "Open connections: " + mNumConnections + " (accepted " + mNumAccepted + ", calls " + mNumCalls + ")\n";
+	}
+
+	@Override
+	public void run() {
+		long lastSweep = System.currentTimeMillis();
+		try {
+			while(mIsUp && mService.isUp()) {
+				mSelector.select(SWEEP_INTERVAL);
+
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if(!key.isValid()) continue;
+					if(key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection conn = (Connection)key.attachment();
+					try {
+						if(key.isReadable()) conn.doRead();
+						if(key.isValid() && key.isWritable()) conn.doWrite();
+					} catch(IOException e) {
+						conn.close();
+					}
+				}
+
+				runSelectorTasks();
+
+				long now = System.currentTimeMillis();
+				if(now - lastSweep >= SWEEP_INTERVAL) {
+					closeIdle(now);
+					lastSweep = now;
+				}
+			}
+		} catch(ClosedSelectorException e) {
+			// shutting down
+		} catch(IOException e) {
+			Log.w(TAG, "RPC nio engine exiting due to exception: " + e.getMessage());
+		} finally {
+			for(SelectionKey key : mSelector.keys()) {
+				if(key.attachment() != null) ((Connection)key.attachment()).close();
+			}
+			try {
+				mSelector.close();
+				mServerChannel.close();
+			} catch(IOException e) {
+				//shouldn't happen
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = mServerChannel.accept();
+		if(channel == null) return;
+		channel.configureBlocking(false);
+		// back-to-back request/response exchanges; don't let Nagle delay replies
+		channel.socket().setTcpNoDelay(true);
+		Connection conn = new Connection(channel);
+		conn.mKey = channel.register(mSelector, SelectionKey.OP_READ, conn);
+		synchronized(this) {
+			mNumConnections++;
+			mNumAccepted++;
+		}
+	}
+
+	/**
+	 * Called on a worker thread to have task run on the selector thread.
+	 */
+	private void runOnSelector(Runnable task) {
+		synchronized(mSelectorTasks) {
+			mSelectorTasks.add(task);
+		}
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Called on a worker thread when a call completes.
+	 */
+	private void callCompleted(final Connection conn, final JSONObject response, final RPCService.Payload payload) {
+		runOnSelector(new Runnable() {
+			public void run() {
+				conn.callDone(response, payload);
+			}
+		});
+	}
+
+	private void runSelectorTasks() {
+		while(true) {
+			Runnable task;
+			synchronized(mSelectorTasks) {
+				if(mSelectorTasks.isEmpty()) return;
+				task = mSelectorTasks.removeFirst();
+			}
+			task.run();
+		}
+	}
+
+	private void closeIdle(long now) {
+		for(SelectionKey key : mSelector.keys()) {
+			Connection conn = (Connection)key.attachment();
+			if(conn != null && conn.isIdle() && now - conn.mLastActive > mIdleTimeout) conn.close();
+		}
+	}
+
+	/**
+	 * Per-connection protocol state.  It's touched only by the selector thread.  (mAttachments and mStreams
+	 * are set before any call is dispatched, so worker threads may read them.)
+	 */
+	private class Connection {
+		SocketChannel mChannel;
+		SelectionKey mKey;
+		ByteBuffer mHeader = ByteBuffer.allocate(LENGTH_PREFIX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer mBody = null;                                     // non-null while reading a message body
+		LinkedList<ByteBuffer> mWriteQueue = new LinkedList<ByteBuffer>();
+		boolean mHandshakeDone = false;
+		boolean mIsPersistent = false;
+		boolean mAttachments = false;                                // true if the caller accepts binary attachments
+		boolean mStreams = false;                                    // true if the caller accepts streamed results
+		RPCEncoding mEncoding = RPCEncoding.JSON;                    // how messages after the handshake are encoded
+		boolean mCallInProgress = false;
+		boolean mCloseAfterWrite = false;
+		boolean mIsClosed = false;
+		long mLastActive = System.currentTimeMillis();
+		InputStream mStream = null;                                  // non-null while a result is being streamed
+		boolean mStreamReadPending = false;                          // true while a worker is reading the next chunk
+
+		Connection(SocketChannel channel) {
+			mChannel = channel;
+		}
+
+		boolean isIdle() {
+			return !mCallInProgress && mWriteQueue.isEmpty();
+		}
+
+		/**
+		 * Reads whatever is available, dispatching each complete message.  Stops reading once a call
+		 * is dispatched; reading resumes when its response has been queued.
+		 */
+		void doRead() throws IOException {
+			while(!mCallInProgress && !mCloseAfterWrite && !mIsClosed) {
+				if(mBody == null) {
+					if(mChannel.read(mHeader) < 0) {
+						close();
+						return;
+					}
+					if(mHeader.hasRemaining()) break;
+					mHeader.flip();
+					int msgLen = mHeader.getInt();
+					mHeader.clear();
+					if(msgLen < 0 || msgLen > RPCService.MAX_READ_SIZE) {
+						protocolError(-1, "Recieved invalid message length: " + msgLen);
+						break;
+					}
+					mBody = ByteBuffer.allocate(msgLen);
+				}
+				if(mChannel.read(mBody) < 0) {
+					close();
+					return;
+				}
+				if(mBody.hasRemaining()) break;
+				byte[] msg = mBody.array();
+				mBody = null;
+				mLastActive = System.currentTimeMillis();
+				handleMessage(msg);
+			}
+			updateInterest();
+		}
+
+		private void handleMessage(byte[] msg) {
+			int callId = -1;
+			try {
+				JSONObject obj = mEncoding.decode(msg, 0, msg.length);
+				callId = obj.optInt("id", -1);
+				if(!mHandshakeDone) {
+					String handshakeError = RPCService.checkHandshake(obj);
+					if(handshakeError != null) {
+						protocolError(callId, handshakeError);
+						return;
+					}
+					mHandshakeDone = true;
+					mIsPersistent = RPCService.requestsKeepAlive(obj);
+					mAttachments = RPCService.requestsAttachments(obj);
+					mStreams = RPCService.requestsStreams(obj);
+					RPCEncoding encoding = RPCEncoding.choose(obj);
+					queueMessage(mService.handshakeReply(mService.incId(), callId, mIsPersistent, mAttachments, mStreams, encoding));
+					// everything after the handshake reply uses the chosen encoding
+					mEncoding = encoding;
+					return;
+				}
+
+				// make sure this is a method invocation request
+				if(!obj.getString("type").equals("invoke")) {
+					protocolError(callId, "RPCCall request message did not have type 'invoke'.");
+					return;
+				}
+				mCallInProgress = true;
+				mService.executor().execute(new NioCall(this, obj));
+			} catch(Exception e) {
+				protocolError(callId, e.toString());
+			}
+		}
+
+		/**
+		 * Runs on the selector thread once the call's response is available.
+		 */
+		void callDone(JSONObject response, RPCService.Payload payload) {
+			if(mIsClosed) {
+				if(payload != null) payload.close();
+				return;
+			}
+			mLastActive = System.currentTimeMillis();
+			synchronized(RPCNioEngine.this) {
+				mNumCalls++;
+			}
+			if(response != null) {
+				try {
+					queueMessage(response);
+				} catch(JSONException e) {
+					// can't be encoded; closing the connection is all that's left
+					response = null;
+				}
+			}
+			if(payload != null) {
+				if(response != null && payload.attachments != null) {
+					for(ByteBuffer buf : payload.attachments) queueFrame(buf);
+				}
+				if(response != null) mStream = payload.stream;
+				else payload.close();
+			}
+			if(mStream != null) {
+				// the call isn't over until the whole stream has been sent
+				pumpStream();
+				updateInterest();
+				return;
+			}
+			finishCall(response != null);
+		}
+
+		/**
+		 * Called once the whole response has been queued.  Resumes reading requests, unless the
+		 * connection is to be closed.
+		 */
+		private void finishCall(boolean ok) {
+			mCallInProgress = false;
+			// a caller that didn't ask for a persistent connection gets exactly one call
+			if(!ok || !mIsPersistent) mCloseAfterWrite = true;
+			updateInterest();
+			// bytes of the next request may already be sitting in the socket buffer
+			if(mKey.isValid() && (mKey.interestOps() & SelectionKey.OP_READ) != 0) {
+				try {
+					doRead();
+				} catch(IOException e) {
+					close();
+				}
+			}
+		}
+
+		/**
+		 * Has a worker read the stream's next chunk, unless one already is or enough is queued already.
+		 */
+		private void pumpStream() {
+			if(mStream == null || mStreamReadPending || queuedBytes() >= STREAM_WINDOW) return;
+			mStreamReadPending = true;
+			mService.executor().execute(new StreamRead(this, mStream));
+		}
+
+		/**
+		 * Runs on the selector thread when a worker has read a chunk of the stream.
+		 * @param len The chunk's length, or -1 at the end of the stream
+		 * @param error Non-null if the stream couldn't be read
+		 */
+		void streamRead(byte[] chunk, int len, IOException error) {
+			mStreamReadPending = false;
+			if(mIsClosed) return;
+			if(error != null) {
+				// an error message now would be taken for part of the response; all we can do is close the connection
+				Log.w(TAG, "Reading result stream failed: " + error.getMessage());
+				close();
+				return;
+			}
+			mLastActive = System.currentTimeMillis();
+			if(len < 0) {
+				// an empty chunk marks the end
+				queueFrame(ByteBuffer.allocate(0));
+				closeStream();
+				finishCall(true);
+				return;
+			}
+			queueFrame(ByteBuffer.wrap(chunk, 0, len));
+			pumpStream();
+			updateInterest();
+		}
+
+		private void closeStream() {
+			if(mStream == null) return;
+			try {
+				mStream.close();
+			} catch(IOException e) {
+				// nothing to be done
+			}
+			mStream = null;
+		}
+
+		private int queuedBytes() {
+			int total = 0;
+			for(ByteBuffer buf : mWriteQueue) total += buf.remaining();
+			return total;
+		}
+
+		private void protocolError(int callId, String message) {
+			try {
+				queueMessage(mService.errorMsg(mService.incId(), callId, message));
+			} catch(Exception e) {
+				// nothing more we can tell the caller
+			}
+			mCloseAfterWrite = true;
+		}
+
+		private void queueMessage(JSONObject obj) throws JSONException {
+			byte[] body = mEncoding.encode(obj);
+			ByteBuffer frame = ByteBuffer.allocate(LENGTH_PREFIX_SIZE + body.length).order(ByteOrder.LITTLE_ENDIAN);
+			frame.putInt(body.length);
+			frame.put(body);
+			frame.flip();
+			mWriteQueue.add(frame);
+		}
+		
+		// queues the length prefix and then the buffer itself, rather than copying it
+		private void queueFrame(ByteBuffer buf) {
+			ByteBuffer header = ByteBuffer.allocate(LENGTH_PREFIX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(buf.remaining());
+			header.flip();
+			mWriteQueue.add(header);
+			mWriteQueue.add(buf);
+		}
+
+		void doWrite() throws IOException {
+			while(!mWriteQueue.isEmpty()) {
+				ByteBuffer buf = mWriteQueue.getFirst();
+				mChannel.write(buf);
+				if(buf.hasRemaining()) break;
+				mWriteQueue.removeFirst();
+			}
+			mLastActive = System.currentTimeMillis();
+			pumpStream();
+			updateInterest();
+		}
+
+		/**
+		 * Sets the selector interest to match the connection's state, closing it if there's nothing more to do.
+		 */
+		void updateInterest() {
+			if(mIsClosed) return;
+			if(mCloseAfterWrite && mWriteQueue.isEmpty()) {
+				close();
+				return;
+			}
+			int ops = 0;
+			if(!mWriteQueue.isEmpty()) ops |= SelectionKey.OP_WRITE;
+			if(!mCallInProgress && !mCloseAfterWrite) ops |= SelectionKey.OP_READ;
+			mKey.interestOps(ops);
+		}
+
+		void close() {
+			if(mIsClosed) return;
+			mIsClosed = true;
+			closeStream();
+			mKey.cancel();
+			try {
+				mChannel.close();
+			} catch(IOException e) {
+				//shouldn't happen
+			}
+			synchronized(RPCNioEngine.this) {
+				mNumConnections--;
+			}
+		}
+	}
+
+	/**
+	 * Runs one invocation on a worker thread.
+	 */
+	private class NioCall extends RPCService.RPCTask {
+		private Connection mConn;
+		private JSONObject mRequest;
+
+		NioCall(Connection conn, JSONObject request) {
+			mConn = conn;
+			mRequest = request;
+		}
+
+		public void run() {
+			JSONObject response;
+			RPCService.Payload payload = null;
+			try {
+				response = mService.invoke(mRequest);
+				payload = RPCService.extractPayload(response, mConn.mAttachments, mConn.mStreams);
+			} catch(JSONException e) {
+				response = errorResponse(e.toString());
+			} catch(Exception e) {
+				response = errorResponse(e.toString());
+			}
+			callCompleted(mConn, response, payload);
+		}
+
+		// The pool is saturated; tell the caller, which may try again on this same connection
+		void reject() {
+			callCompleted(mConn, errorResponse(RPCService.BUSY_MSG), null);
+		}
+
+		// returns null if even the error message can't be built, which causes the connection to be closed
+		private JSONObject errorResponse(String msg) {
+			try {
+				return mService.errorMsg(mService.incId(), mRequest.optInt("id", -1), msg);
+			} catch(Exception e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Reads the next chunk of a streamed result on a worker thread, since the read may block.
+	 */
+	private class StreamRead extends RPCService.RPCTask {
+		private final Connection mConn;
+		private final InputStream mStream;
+
+		StreamRead(Connection conn, InputStream stream) {
+			mConn = conn;
+			mStream = stream;
+		}
+
+		public void run() {
+			final byte[] chunk = new byte[RPCService.STREAM_CHUNK_SIZE];
+			int len;
+			IOException error = null;
+			try {
+				do {
+					len = mStream.read(chunk);
+				} while(len == 0);
+			} catch(IOException e) {
+				len = 0;
+				error = e;
+			}
+			done(chunk, len, error);
+		}
+
+		// The pool is saturated.  There's no way to ask the caller to wait partway through a response.
+		void reject() {
+			done(null, 0, new IOException(RPCService.BUSY_MSG));
+		}
+
+		private void done(final byte[] chunk, final int len, final IOException error) {
+			runOnSelector(new Runnable() {
+				public void run() {
+					mConn.streamRead(chunk, len, error);
+				}
+			});
+		}
+	}
+}
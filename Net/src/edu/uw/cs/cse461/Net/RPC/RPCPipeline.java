@@ -0,0 +1,283 @@
+package edu.uw.cs.cse461.Net.RPC;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * A persistent RPC connection that can have many invocations outstanding at once.
+ * <p>
+ * Callers send requests without waiting for earlier ones to be answered.  A reader thread
+ * takes replies off the connection as they arrive and hands each to the RPCFuture whose request
+ * id matches the reply's callid.  This class is used only by RPCCall.invokeAsync().
+ * <p>
+ * If the remote side didn't agree to keep the connection open, the pipeline carries a
+ * single call.  The pipeline shuts itself down when the connection fails, when the remote
+ * side closes it, or when it has been idle for the time RPCCall gives it, which is meant to be
+ * shorter than the remote side's so that the remote side rarely closes it first.  A call that
+ * goes unanswered for the socket timeout fails on its own; the others keep waiting.
+ * <p>
+ * If the connection ends cleanly between replies, the remote side has most likely timed it out
+ * without seeing the calls still outstanding, so each of them is sent once more on a new pipeline.
+ * <p>
+ * Streamed results are sent to a pipeline as if they'd been byte[]s (see RPCService).
+ */
+class RPCPipeline extends Thread {
+	private static final String TAG="RPCPipeline";
+
+	private RPCCall mOwner;
+	private RPCCallerSocket mSocket;
+	private Map<Integer, RPCFuture> mOutstanding = new HashMap<Integer, RPCFuture>();  // keyed by request id
+	private boolean mIsOpen = true;       // false once no more requests may be sent
+	private long mNumCalls = 0;
+	private long mIdleTimeout;            // millis without calls after which the pipeline closes itself
+	private long mCallTimeout;            // millis a call may wait for its reply
+	private long mLastActive;             // time of the last request or reply, in millis
+
+	/**
+	 * @param owner The RPCCall to re-send calls through if the connection ends before answering them
+	 * @param idleTimeout Millis without calls after which the pipeline closes itself
+	 */
+	RPCPipeline(RPCCall owner, String ip, int port, long idleTimeout) throws JSONException, IOException {
+		super("RPCPipeline " + ip + ":" + port);
+		mOwner = owner;
+		mIdleTimeout = idleTimeout;
+		// a stream would hold up every reply behind it, so results are always sent whole
+		mSocket = new RPCCallerSocket(ip, port, true, false);
+		// the reader wakes up now and then to time out calls and to close the pipeline when it's idle
+		mCallTimeout = mSocket.getSoTimeout();
+		mSocket.setSoTimeout((int)Math.max(Math.min(mIdleTimeout, mCallTimeout)/4, 100));
+		mLastActive = System.currentTimeMillis();
+		setDaemon(true);
+		start();
+	}
+
+	/**
+	 * Sends future's invocation request.
+	 * @throws IOException The pipeline is closed, or the request couldn't be sent.  The future
+	 * is left as it was, so it can be sent on another pipeline.
+	 */
+	void send(RPCFuture future) throws JSONException, IOException {
+		int id = RPCCallerSocket.nextId();
+		synchronized(this) {
+			if ( !mIsOpen ) throw new IOException("Pipelined connection to " + mSocket.remoteIP() + ":" + mSocket.remotePort() + " is closed");
+			mLastActive = System.currentTimeMillis();
+			future.sent(id, mLastActive);
+			mOutstanding.put(id, future);
+			mNumCalls++;
+			// without a persistent connection, the remote side will close after answering this request
+			if ( !mSocket.isPersistent() ) mIsOpen = false;
+		}
+		try {
+			mSocket.sendRequest(id, future.mServiceName, future.mMethod, future.mUserRequest);
+		} catch (IOException e) {
+			synchronized(this) {
+				mOutstanding.remove(id);
+			}
+			fail(e, false);
+			throw e;
+		}
+	}
+
+	/**
+	 * True if the pipeline can accept more requests.
+	 */
+	synchronized boolean isOpen() {
+		return mIsOpen;
+	}
+
+	/**
+	 * Stops accepting requests and fails any that are outstanding.
+	 */
+	void close() {
+		fail(new IOException("Pipelined connection closed"), false);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return mSocket.remoteIP() + ":" + mSocket.remotePort() + " calls: " + mNumCalls + " outstanding: " + mOutstanding.size();
+	}
+
+	/**
+	 * The reader thread.  Matches each reply to its request by callid.
+	 */
+	@Override
+	public void run() {
+		try {
+			while ( true ) {
+				JSONObject response;
+				long readBefore = mSocket.bytesRead();
+				try {
+					response = mSocket.readResponse();
+				} catch (SocketTimeoutException e) {
+					// with part of a reply read, the connection is out of step and must go
+					if ( mSocket.bytesRead() != readBefore ) throw e;
+					if ( expire(System.currentTimeMillis()) ) break;
+					continue;
+				} catch (IOException e) {
+					if ( mSocket.bytesRead() != readBefore ) throw e;
+					// the connection ended between replies
+					fail(e, true);
+					return;
+				}
+				RPCFuture future;
+				synchronized(this) {
+					mLastActive = System.currentTimeMillis();
+					future = mOutstanding.remove(response.optInt("callid", -1));
+				}
+				if ( future == null ) {
+					// An ERROR not tied to any request means the remote side is giving up on the connection
+					if ( "ERROR".equals(response.optString("type")) ) {
+						throw new IOException(response.optString("msg", "Remote side reported an error on the connection"));
+					}
+					Log.w(TAG, "Discarding response matching no outstanding request: " + response.optInt("callid", -1));
+					continue;
+				}
+				future.complete(response);
+				synchronized(this) {
+					if ( !mIsOpen && mOutstanding.isEmpty() ) break;
+				}
+			}
+			fail(new IOException("Pipelined connection closed"), false);
+		} catch (Exception e) {
+			fail(e, false);
+		}
+	}
+
+	/**
+	 * Fails the calls that have waited longer than the call timeout.  If none are left, and the
+	 * pipeline has been idle too long, stops it accepting requests.
+	 * @return True if the pipeline has stopped accepting requests and has nothing outstanding
+	 */
+	private synchronized boolean expire(long now) {
+		Iterator<RPCFuture> it = mOutstanding.values().iterator();
+		while ( it.hasNext() ) {
+			RPCFuture future = it.next();
+			if ( now - future.mSentAt >= mCallTimeout ) {
+				it.remove();
+				future.fail(new SocketTimeoutException("RPC call " + future.mId + " to " + mSocket.remoteIP() + ":" + mSocket.remotePort() + " timed out"));
+			}
+		}
+		if ( !mOutstanding.isEmpty() ) return false;
+		if ( now - mLastActive >= mIdleTimeout ) mIsOpen = false;
+		return !mIsOpen;
+	}
+
+	/**
+	 * Closes the connection.  The calls still outstanding fail with e, except that if resend is true,
+	 * those that haven't been re-sent before are handed back to the RPCCall to send again.
+	 */
+	private void fail(Exception e, boolean resend) {
+		ArrayList<RPCFuture> failed;
+		synchronized(this) {
+			mIsOpen = false;
+			failed = new ArrayList<RPCFuture>(mOutstanding.values());
+			mOutstanding.clear();
+		}
+		try {
+			mSocket.close();
+		} catch (IOException e1) {
+			//shouldn't happen
+		}
+		for ( RPCFuture future : failed ) {
+			if ( resend && !future.mResent ) {
+				future.mResent = true;
+				Log.d(TAG, "Connection to " + mSocket.remoteIP() + ":" + mSocket.remotePort() + " ended before call " + future.mId + " was answered.  Re-sending.");
+				mOwner.resend(mSocket.remoteIP(), mSocket.remotePort(), future);
+			}
+			else future.fail(e);
+		}
+	}
+
+	//-------------------------------------------------------------------------------------------
+	/**
+	 * The result of an asynchronous invocation.  get() returns what the remote method returned,
+	 * or throws an ExecutionException whose cause is the IOException or JSONException the
+	 * synchronous RPCCall.invoke() would have thrown.
+	 */
+	static class RPCFuture implements Future<JSONObject> {
+		private final String mServiceName;
+		private final String mMethod;
+		private final JSONObject mUserRequest;
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private volatile int mId;             // id of the latest request sent for this call
+		private long mSentAt;                 // when that request was sent, in millis
+		private boolean mResent = false;      // true once the call has been sent a second time
+		private JSONObject mValue;
+		private Exception mException;
+
+		RPCFuture(String serviceName, String method, JSONObject userRequest) {
+			mServiceName = serviceName;
+			mMethod = method;
+			mUserRequest = userRequest;
+		}
+
+		void sent(int id, long when) {
+			mId = id;
+			mSentAt = when;
+		}
+
+		void complete(JSONObject response) {
+			try {
+				RPCCallerSocket.checkResponse(response, mId, "Error invoking remote procedure.");
+				set(response.getJSONObject("value"), null);
+			} catch (Exception e) {
+				set(null, e);
+			}
+		}
+
+		void fail(Exception e) {
+			set(null, e);
+		}
+
+		private synchronized void set(JSONObject value, Exception e) {
+			if ( mDone.getCount() == 0 ) return;
+			mValue = value;
+			mException = e;
+			mDone.countDown();
+		}
+
+		/**
+		 * Outstanding requests can't be withdrawn from the connection, so cancellation isn't supported.
+		 */
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return mDone.getCount() == 0;
+		}
+
+		public JSONObject get() throws InterruptedException, ExecutionException {
+			mDone.await();
+			return result();
+		}
+
+		public JSONObject get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if ( !mDone.await(timeout, unit) ) throw new TimeoutException("RPC call " + mId + " timed out");
+			return result();
+		}
+
+		private synchronized JSONObject result() throws ExecutionException {
+			if ( mException != null ) throw new ExecutionException(mException);
+			return mValue;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package edu.uw.cs.cse461.Net.RPC;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The caller's end of a streamed result.  Reads the chunks of the stream off the connection
+ * that carried the call, one at a time, so only a chunk is ever held in memory.
+ * <p>
+ * The connection can't carry another call until the stream has been read to its end, at which
+ * point it's handed back to RPCCall for reuse.  Closing the stream before then closes the connection.
+ */
+class RPCResponseStream extends InputStream {
+	private RPCCall mOwner;
+	private RPCCallerSocket mSocket;
+	private ByteBuffer mChunk = null;     // the current chunk; its position is the next byte to return
+	private boolean mAtEnd = false;       // true once the end marker has been read
+	private boolean mIsClosed = false;
+
+	RPCResponseStream(RPCCall owner, RPCCallerSocket socket) {
+		mOwner = owner;
+		mSocket = socket;
+	}
+
+	/**
+	 * Makes sure there's an unread byte in mChunk, reading another chunk if needed.
+	 * @return false at the end of the stream
+	 */
+	private boolean fill() throws IOException {
+		if ( mIsClosed ) throw new IOException("Stream is closed");
+		while ( mChunk == null || !mChunk.hasRemaining() ) {
+			if ( mAtEnd ) return false;
+			if ( mSocket == null ) throw new IOException("Connection carrying the stream failed");
+			try {
+				mChunk = mSocket.readChunk(mChunk);
+			} catch (IOException e) {
+				finish(false);
+				throw e;
+			}
+			if ( !mChunk.hasRemaining() ) {
+				mAtEnd = true;
+				finish(true);
+			}
+		}
+		return true;
+	}
+
+	private void finish(boolean complete) {
+		if ( mSocket == null ) return;
+		mOwner.streamDone(mSocket, complete);
+		mSocket = null;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if ( !fill() ) return -1;
+		return mChunk.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if ( len == 0 ) return 0;
+		if ( !fill() ) return -1;
+		int n = Math.min(len, mChunk.remaining());
+		mChunk.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return mChunk == null ? 0 : mChunk.remaining();
+	}
+
+	/**
+	 * Closes the stream.  If it hasn't been read to its end, the connection is closed too.
+	 */
+	@Override
+	public void close() {
+		mIsClosed = true;
+		mChunk = null;
+		finish(false);
+	}
+}
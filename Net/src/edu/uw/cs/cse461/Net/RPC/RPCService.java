@@ -1,23 +1,50 @@
 package edu.uw.cs.cse461.Net.RPC;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.Net.Base.NetBase;
 import edu.uw.cs.cse461.Net.Base.NetLoadable.NetLoadableService;
 import edu.uw.cs.cse461.Net.TCPMessageHandler.TCPMessageHandler;
+import edu.uw.cs.cse461.util.Base64;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
 
 /**
  * Implements the server side of RPC that receives remote invocation requests.
+ * <p>
+ * A called method can return binary data by putting a byte[] or ByteBuffer in the top level of
+ * the JSONObject it returns.  If the caller said in its handshake that it accepts attachments,
+ * each such field is removed from the response message and its bytes are sent as a raw message
+ * of their own, following the response; the response's "attachments" field lists their keys in order.
+ * Callers that didn't say so get the fields Base64 encoded, as they would have before.
+ * <p>
+ * A method can also put one InputStream in its return value, to send a result too big to hold in
+ * memory or to fit in one message.  If the caller said in its handshake that it accepts streams, the
+ * stream is read and sent a chunk at a time, each chunk a raw message, after the response and any
+ * attachments.  An empty chunk marks the end.  The response's "stream" field gives its key.  For other
+ * callers, the whole stream is read and sent as if it had been a byte[].
  * 
  * @author zahorjan
  *
@@ -25,10 +52,24 @@ import edu.uw.cs.cse461.util.Log;
 public class RPCService extends NetLoadableService implements RPCServiceInterface {
 	private static final String TAG="RPCService";
 	public static final int MAX_READ_SIZE = 4*1024*1024; //bytes
-	private Map<String, RPCCallableMethod> mServiceMethodMap = new HashMap<String, RPCCallableMethod>();
+	// service name -> method name -> handler.  Never modified once published: registerHandler() installs
+	// a new copy, so calls look up their handler without locking.
+	private volatile Map<String, Map<String, RPCHandler>> mHandlerMap = new HashMap<String, Map<String, RPCHandler>>();
 	private ServerSocket mServerSocket = null;
 	private boolean mIsUp = false;
 	private static int mId = 0;
+	private static final String KEEP_ALIVE = "keep-alive";
+	static final String ATTACHMENTS_KEY = "attachments";
+	static final String STREAMS_KEY = "streams";     // handshake option: the caller can read streamed results
+	static final String STREAM_KEY = "stream";       // response field: key of the value being streamed
+	static final int STREAM_CHUNK_SIZE = 64*1024;    //bytes
+	static final String BUSY_MSG = "RPC server is too busy to accept the request.  Try again later.";
+	private int mMaxSessions;        // max number of persistent connections served at once
+	private int mNumSessions = 0;    // number of persistent connections currently being served
+	private static final int WORKER_KEEPALIVE = 60;  // seconds an idle worker thread lives
+	private ThreadPoolExecutor mExecutor;            // runs an RPCWorker for each accepted connection
+	private long mNumRejected = 0;                   // connections turned away because the pool and its queue were full
+	private RPCNioEngine mNioEngine = null;          // non-null if rpc.engine=nio
 	
 	/**
 	 * Constructor.  Creates the Java ServerSocket and binds it to a port.
@@ -37,6 +78,9 @@ public class RPCService extends NetLoadableService implements RPCServiceInterfac
 	 * (The config file settings are available via the OS object.)
 	 * <p>
 	 * Once the port is created, a thread needs to be created to listen for connections on it.
+	 * <p>
+	 * If the config file has rpc.engine=nio, the connections are instead multiplexed by a single
+	 * selector thread (see RPCNioEngine), and the worker pool is used only to run the called methods.
 	 * 
 	 * @throws Exception
 	 */
@@ -44,12 +88,34 @@ public class RPCService extends NetLoadableService implements RPCServiceInterfac
 		super("rpc", true);	
 		// create serversocket, binding to port from config file, or 0 if there isn't one given
 		int rpcPort = NetBase.theNetBase().config().getAsInt("rpc.serverport", 0, TAG);
-		mServerSocket = new ServerSocket(rpcPort);
-		Log.i(TAG,  "Server socket port = " + mServerSocket.getLocalPort());
+		
+		// incoming connections are served by a bounded pool of worker threads.  A persistent session
+		// occupies a worker for its whole lifetime, so by default at most half the workers can be tied up that way.
+		// A ThreadPoolExecutor queues work rather than add threads beyond its core size, so the core size is the
+		// max: a connection waits in the queue only when every worker is busy, and sessions never hold all of them.
+		// Idle workers still time out.
+		int maxThreads = NetBase.theNetBase().config().getAsInt("rpc.threads.max", 32, 1, TAG);
+		int queueSize = NetBase.theNetBase().config().getAsInt("rpc.threads.queuesize", 64, 1, TAG);
+		mMaxSessions = NetBase.theNetBase().config().getAsInt("rpc.maxsessions", maxThreads/2, 0, maxThreads-1, TAG);
+		mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads, WORKER_KEEPALIVE, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new RPCWorkerThreadFactory(), new RPCRejectionHandler());
+		mExecutor.allowCoreThreadTimeOut(true);
+		
+		String engine = NetBase.theNetBase().config().getProperty("rpc.engine", "blocking");
+		if(engine.equals("nio")) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.socket().bind(new InetSocketAddress(rpcPort));
+			mServerSocket = channel.socket();
+			mNioEngine = new RPCNioEngine(this, channel);
+		} else {
+			mServerSocket = new ServerSocket(rpcPort);
+		}
+		Log.i(TAG,  "Server socket port = " + mServerSocket.getLocalPort() + " (" + (mNioEngine != null ? "nio" : "blocking") + " engine)");
 		mIsUp = true;
 		
 		// start listening for connections on this serversocket
-		(new RPCListenThread()).start();
+		if(mNioEngine != null) mNioEngine.start();
+		else (new RPCListenThread()).start();
 	}
 	
 	/**
@@ -67,6 +133,9 @@ public class RPCService extends NetLoadableService implements RPCServiceInterfac
 			}
 			
 		}
+		if(mNioEngine != null) mNioEngine.shutdown();
+		// queued connections are dropped; workers are daemons, so any blocked in a read won't hold up termination
+		mExecutor.shutdownNow();
 	}
 	
 	/**
@@ -74,16 +143,28 @@ public class RPCService extends NetLoadableService implements RPCServiceInterfac
 	 * Those methods are then invoked as callbacks when an remote RPC request for them arrives.
 	 * @param serviceName  The name of the service.
 	 * @param methodName  The external, well-known name of the service's method to call
-	 * @param method The descriptor allowing invocation of the Java method implementing the call
+	 * @param handler The handler for the call: an RPCCallableMethod, or any other RPCHandler
 	 * @throws Exception
 	 */
 	@Override
-	public synchronized void registerHandler(String serviceName, String methodName, RPCCallableMethod method) throws Exception {
-		String key = serviceName + "." + methodName;
-		Log.d(TAG, "attempting to register: " + key);
-		if(mServiceMethodMap.containsKey(key))
-			throw new Exception(key + " is already registered");
-		mServiceMethodMap.put(key, method);
+	public synchronized void registerHandler(String serviceName, String methodName, RPCHandler handler) throws Exception {
+		Log.d(TAG, "attempting to register: " + serviceName + "." + methodName);
+		Map<String, RPCHandler> methods = mHandlerMap.get(serviceName);
+		if(methods != null && methods.containsKey(methodName))
+			throw new Exception(serviceName + "." + methodName + " is already registered");
+		methods = methods == null ? new HashMap<String, RPCHandler>() : new HashMap<String, RPCHandler>(methods);
+		methods.put(methodName, handler);
+		Map<String, Map<String, RPCHandler>> handlerMap = new HashMap<String, Map<String, RPCHandler>>(mHandlerMap);
+		handlerMap.put(serviceName, methods);
+		mHandlerMap = handlerMap;
+	}
+	
+	/**
+	 * Returns the handler registered for a method, or null if there isn't one.
+	 */
+	private RPCHandler handler(String serviceName, String methodName) {
+		Map<String, RPCHandler> methods = mHandlerMap.get(serviceName);
+		return methods == null ? null : methods.get(methodName);
 	}
 	
 	/**
@@ -96,6 +177,13 @@ public class RPCService extends NetLoadableService implements RPCServiceInterfac
 		return IPFinder.getMyIP();
 	}
 
+	/**
+	 * The most worker threads that serve calls at once.
+	 */
+	public int maxThreads() {
+		return mExecutor.getMaximumPoolSize();
+	}
+	
 	/**
 	 * Returns the port to which the RPC ServerSocket is bound.
 	 * @return
@@ -109,27 +197,341 @@ public class RPCService extends NetLoadableService implements RPCServiceInterfac
 	
 	@Override
 	public String dumpState() {
-		return loadablename() + (mIsUp ? " is up" : " is down");
+		StringBuilder sb = new StringBuilder();
+		sb.append(loadablename()).append(mIsUp ? " is up" : " is down").append("\n");
+		if(mNioEngine != null) sb.append(mNioEngine.dumpState());
+		else sb.append("Persistent sessions: ").append(numSessions()).append(" (max ").append(mMaxSessions).append(")\n");
+		sb.append("Workers: ").append(mExecutor.getActiveCount()).append(" active, ")
+		  .append(mExecutor.getPoolSize()).append(" in pool (largest ").append(mExecutor.getLargestPoolSize())
+		  .append(", max ").append(mExecutor.getMaximumPoolSize()).append(")\n");
+		sb.append("Queued tasks: ").append(mExecutor.getQueue().size())
+		  .append(" (capacity ").append(mExecutor.getQueue().size() + mExecutor.getQueue().remainingCapacity()).append(")\n");
+		sb.append("Completed tasks: ").append(mExecutor.getCompletedTaskCount()).append("\n");
+		sb.append("Rejected tasks: ").append(numRejected());
+		return sb.toString();
 	}
 	
-	private synchronized int incId() {
+	synchronized int incId() {
 		return mId++;
 	}
 	
-	private void sendErrorMsg(int id, int callid, TCPMessageHandler msgHandler, String message) {
+	/**
+	 * Reserves a persistent session slot.
+	 * @return true if a slot was available; false if the caller should be served a single call only
+	 */
+	private synchronized boolean startSession() {
+		if(mNumSessions >= mMaxSessions) return false;
+		mNumSessions++;
+		return true;
+	}
+	
+	private synchronized void endSession() {
+		mNumSessions--;
+	}
+	
+	private synchronized int numSessions() {
+		return mNumSessions;
+	}
+	
+	private synchronized long numRejected() {
+		return mNumRejected;
+	}
+	
+	private synchronized void incRejected() {
+		mNumRejected++;
+	}
+	
+	//---------------------------------------------------------------------------
+	// Protocol message handling shared by the blocking and nio engines
+	
+	/**
+	 * Builds an ERROR message replying to message callid.
+	 */
+	JSONObject errorMsg(int id, int callid, String message) throws JSONException, UnknownHostException {
+		JSONObject errorMsg = new JSONObject();
+		errorMsg.put("id", id);
+		errorMsg.put("host", localIP());
+		errorMsg.put("callid", callid);
+		errorMsg.put("type", "ERROR");
+		errorMsg.put("msg", message);
+		return errorMsg;
+	}
+	
+	private void sendErrorMsg(int id, int callid, TCPMessageHandler msgHandler, RPCEncoding encoding, String message) {
 		try {
-			JSONObject errorMsg = new JSONObject();
-			errorMsg.put("id", id);
-			errorMsg.put("host", localIP());
-			errorMsg.put("callid", callid);
-			errorMsg.put("type", "ERROR");
-			errorMsg.put("msg", message);
-			msgHandler.sendMessage(errorMsg);
+			encoding.sendMessage(msgHandler, errorMsg(id, callid, message));
 		} catch (Exception e) {
 			// do nothing - if we run into an error while trying to send an error message there's not much we can do
 		}
 	}
 	
+	/**
+	 * Validates a handshake "connect" message.
+	 * @return null if the handshake is acceptable; otherwise, a description of what's wrong with it
+	 */
+	static String checkHandshake(JSONObject handshake) throws JSONException {
+		if(!handshake.getString("action").equals("connect"))
+			return "Initial message did not have the action 'connect'";
+		if(!handshake.getString("type").equals("control"))
+			return "Initial message did not have type 'control'";
+		return null;
+	}
+	
+	/**
+	 * True if the caller asked, in its handshake, for the connection to be kept open.
+	 */
+	static boolean requestsKeepAlive(JSONObject handshake) {
+		JSONObject options = handshake.optJSONObject(TCPMessageHandler.ADDITIONAL_OPTIONS_KEY);
+		return options != null && KEEP_ALIVE.equals(options.optString("connection"));
+	}
+	
+	/**
+	 * True if the caller said, in its handshake, that it can read binary attachments.
+	 */
+	static boolean requestsAttachments(JSONObject handshake) {
+		JSONObject options = handshake.optJSONObject(TCPMessageHandler.ADDITIONAL_OPTIONS_KEY);
+		return options != null && options.optBoolean(ATTACHMENTS_KEY);
+	}
+	
+	/**
+	 * True if the caller said, in its handshake, that it can read streamed results.
+	 */
+	static boolean requestsStreams(JSONObject handshake) {
+		JSONObject options = handshake.optJSONObject(TCPMessageHandler.ADDITIONAL_OPTIONS_KEY);
+		return options != null && options.optBoolean(STREAMS_KEY);
+	}
+	
+	/**
+	 * Builds the OK reply to a handshake.  If keepAlive is true, the reply tells the caller we'll keep the connection open.
+	 * If attachments or streams is true, it tells the caller binary values will be sent as attachments, or streams as
+	 * streams.  It also names the encoding used for the rest of the connection, unless that's JSON.
+	 */
+	JSONObject handshakeReply(int id, int callid, boolean keepAlive, boolean attachments, boolean streams, RPCEncoding encoding) throws JSONException, UnknownHostException {
+		JSONObject returnShake = new JSONObject();
+		returnShake.put("id", id);
+		returnShake.put("host", localIP());
+		returnShake.put("type", "OK");
+		returnShake.put("callid", callid);
+		if(keepAlive || attachments || streams || encoding != RPCEncoding.JSON) {
+			JSONObject value = new JSONObject();
+			if(keepAlive) value.put("connection", KEEP_ALIVE);
+			if(attachments) value.put(ATTACHMENTS_KEY, true);
+			if(streams) value.put(STREAMS_KEY, true);
+			if(encoding != RPCEncoding.JSON) value.put(RPCEncoding.ENCODING_KEY, encoding.name());
+			returnShake.put("value", value);
+		}
+		return returnShake;
+	}
+	
+	/**
+	 * The parts of a response that follow the response message on the wire: first the attachments, in order,
+	 * then the stream, as a series of chunks ending with an empty one.
+	 */
+	static class Payload {
+		List<ByteBuffer> attachments = null;
+		InputStream stream = null;
+		
+		void close() {
+			if(stream == null) return;
+			try {
+				stream.close();
+			} catch(IOException e) {
+				// nothing to be done
+			}
+			stream = null;
+		}
+	}
+	
+	/**
+	 * Takes the binary fields (byte[] or ByteBuffer) and the stream (an InputStream; there can be at most one)
+	 * out of the value in an OK response.
+	 * <p>
+	 * If streamsOK, the stream is removed, its key is put in the response's "stream" field, and it must be sent
+	 * after the attachments.  Otherwise it's read into a byte[] right now, and from then on treated as a binary field.
+	 * If attachmentsOK, the binary fields are removed, their keys are listed in the response's "attachments" field,
+	 * and the caller must send them, in order, right after the response.  Otherwise they're replaced by their
+	 * Base64 encodings.  The response gets a copy of the value with those changes; the value itself is left alone.
+	 * @return What to send after the response, or null if there's nothing
+	 * @throws IOException The stream couldn't be read.
+	 */
+	static Payload extractPayload(JSONObject response, boolean attachmentsOK, boolean streamsOK) throws JSONException, IOException {
+		JSONObject value = response.optJSONObject("value");
+		if(value == null) return null;
+		List<String> keys = null;
+		List<ByteBuffer> attachments = null;
+		String streamKey = null;
+		InputStream stream = null;
+		Iterator<?> it = value.keys();
+		while(it.hasNext()) {
+			String key = (String)it.next();
+			Object field = value.opt(key);
+			ByteBuffer buf;
+			if(field instanceof InputStream) {
+				if(stream != null) {
+					stream.close();
+					((InputStream)field).close();
+					throw new JSONException("A result can contain at most one stream: " + streamKey + " and " + key);
+				}
+				streamKey = key;
+				stream = (InputStream)field;
+				continue;
+			}
+			else if(field instanceof byte[]) buf = ByteBuffer.wrap((byte[])field);
+			else if(field instanceof ByteBuffer) buf = ((ByteBuffer)field).duplicate();
+			else continue;
+			if(!buf.hasArray()) {
+				ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+				copy.put(buf).flip();
+				buf = copy;
+			}
+			if(keys == null) {
+				keys = new ArrayList<String>();
+				attachments = new ArrayList<ByteBuffer>();
+			}
+			keys.add(key);
+			attachments.add(buf);
+		}
+		
+		if(keys == null && stream == null) return null;
+		
+		// the value belongs to the handler, which may hand the same object out again, so the fields
+		// are taken out of a copy.  The binary fields themselves aren't copied.
+		value = new JSONObject(value, JSONObject.getNames(value));
+		response.put("value", value);
+		Payload payload = new Payload();
+		// the value can't be modified while iterating over its keys
+		if(stream != null) {
+			if(streamsOK) {
+				value.remove(streamKey);
+				response.put(STREAM_KEY, streamKey);
+				payload.stream = stream;
+			} else {
+				if(keys == null) {
+					keys = new ArrayList<String>();
+					attachments = new ArrayList<ByteBuffer>();
+				}
+				keys.add(streamKey);
+				attachments.add(ByteBuffer.wrap(readStream(stream)));
+			}
+		}
+		if(keys != null) {
+			for(int i = 0; i < keys.size(); i++) {
+				if(attachmentsOK) value.remove(keys.get(i));
+				else {
+					ByteBuffer buf = attachments.get(i);
+					value.put(keys.get(i), Base64.encodeBytes(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining()));
+				}
+			}
+			if(attachmentsOK) {
+				response.put(ATTACHMENTS_KEY, new JSONArray(keys));
+				payload.attachments = attachments;
+			}
+		}
+		if(payload.attachments == null && payload.stream == null) return null;
+		return payload;
+	}
+	
+	// Reads all of a stream, for a caller that can't take it in chunks.  It has to fit in a single message.
+	private static byte[] readStream(InputStream stream) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+			int n;
+			while((n = stream.read(chunk)) >= 0) {
+				out.write(chunk, 0, n);
+				if(out.size() > MAX_READ_SIZE) throw new IOException("Result stream is too large to send to a caller that doesn't accept streams");
+			}
+			return out.toByteArray();
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Sends a response message, followed by its payload, if any.  Closes the payload's stream.
+	 * If this fails partway, the caller can't be told about it; the connection must be closed.
+	 */
+	static void sendResponse(TCPMessageHandler msgHandler, RPCEncoding encoding, JSONObject response, Payload payload) throws JSONException, IOException {
+		try {
+			encoding.sendMessage(msgHandler, response);
+			if(payload == null) return;
+			if(payload.attachments != null) {
+				for(ByteBuffer buf : payload.attachments) msgHandler.sendMessage(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			}
+			if(payload.stream != null) {
+				byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+				int n;
+				while((n = payload.stream.read(chunk)) >= 0) {
+					if(n > 0) msgHandler.sendMessage(chunk, 0, n);
+				}
+				// an empty chunk marks the end
+				msgHandler.sendMessage(chunk, 0, 0);
+			}
+		} finally {
+			if(payload != null) payload.close();
+		}
+	}
+	
+	/**
+	 * Performs a single invocation request, whose type the caller has already checked is "invoke",
+	 * and builds the response message to send back.
+	 * @throws JSONException The request is malformed.
+	 */
+	JSONObject invoke(JSONObject request) throws JSONException, UnknownHostException {
+		int id = incId();
+		
+		// now get all the info we need to invoke the method
+		String app = request.getString("app");
+		String method = request.getString("method");
+		JSONObject args = request.getJSONObject("args");
+		int callId = request.getInt("id");
+		// validate the invocation request:
+		RPCHandler handler = handler(app, method);
+		if(handler == null) {
+			Log.e(TAG, "not registered service: " + app+"."+method);
+			return errorMsg(id, callId, "The requested method is not registered - unable to invoke");
+		}
+		
+		// attempt to invoke the requested method 
+		JSONObject returnObj = null;
+		try {
+			returnObj = handler.handleCall(args);
+			Log.i(TAG, "result message created");
+		} catch (Exception e) {
+			// create and send back error response for method invocation: (different from handshake errormsg!)
+			JSONObject methodErrMsg = new JSONObject();
+			methodErrMsg.put("id", id);
+			methodErrMsg.put("host", localIP());
+			methodErrMsg.put("callid", callId);
+			methodErrMsg.put("type", "ERROR");
+			methodErrMsg.put("message", e.toString());
+			methodErrMsg.put("callargs", request);
+			return methodErrMsg;
+		}
+		
+		// if there were no problems return response
+		// shouldn't have to worry about returnObj being null here, 
+		// unless that's what the method wanted to return
+		JSONObject response = new JSONObject();
+		response.put("id", id);
+		response.put("host", localIP());
+		response.put("callid", callId);
+		response.put("value", returnObj);
+		response.put("type", "OK");
+		return response;
+	}
+	
+	ThreadPoolExecutor executor() {
+		return mExecutor;
+	}
+	
+	boolean isUp() {
+		return mIsUp;
+	}
+	
+	// Protocol message handling shared by the blocking and nio engines
+	//---------------------------------------------------------------------------
+	
 	private void printMsg(String s) {
 		System.out.println(TAG + ": " + s);
 	}
@@ -148,7 +550,9 @@ public class RPCService extends NetLoadableService implements RPCServiceInterfac
 						socket = mServerSocket.accept();
 						Log.i(TAG, "accept socket");
 						socket.setSoTimeout(socketTimeout);
-						(new RPCWorkThread(socket)).start();
+						// persistent connections carry back-to-back request/response exchanges; don't let Nagle delay replies
+						socket.setTcpNoDelay(true);
+						mExecutor.execute(new RPCWorker(socket));
 						
 						//make null so that this doesn't kill the spawned threads if an exception occurs
 						socket = null;
@@ -170,20 +574,72 @@ public class RPCService extends NetLoadableService implements RPCServiceInterfac
 	}
 	
 	
-	// the RPCWorkThread is responsible for interacting with the caller
-	// (handshake --> rpccall --> close socket and thread dies)
-	private class RPCWorkThread extends Thread {
+	// Names the worker threads and makes them daemons, so that idle persistent sessions can't keep the app alive
+	private static class RPCWorkerThreadFactory implements ThreadFactory {
+		private int mThreadNum = 0;
+		
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "RPCWorker-" + mThreadNum++);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+	
+	/**
+	 * A unit of work run by the worker pool.  If the pool is saturated, the task is
+	 * rejected instead, and must tell the caller the server is too busy.
+	 */
+	static abstract class RPCTask implements Runnable {
+		abstract void reject();
+	}
+	
+	// Invoked on the submitting thread when every worker is busy and the queue is full.
+	private class RPCRejectionHandler implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			incRejected();
+			Log.w(TAG, "Rejecting task: all " + executor.getMaximumPoolSize() + " workers busy and queue full");
+			((RPCTask)r).reject();
+		}
+	}
+	
+	// the RPCWorker is responsible for interacting with the caller
+	// (handshake --> rpccall [--> rpccall ...] --> close socket and worker returns to the pool)
+	// The caller may ask, in the handshake, for the connection to be kept open.  If we agree,
+	// we serve invocations until the caller closes the connection or it sits idle for rpc.timeout.
+	private class RPCWorker extends RPCTask {
 		Socket mSocket = null;
+		boolean mAttachments = false;  // true if the caller accepts binary attachments
+		boolean mStreams = false;      // true if the caller accepts streamed results
+		RPCEncoding mEncoding = RPCEncoding.JSON;  // how messages after the handshake are encoded
 		
-		public RPCWorkThread(Socket socket) {
+		public RPCWorker(Socket socket) {
 			
 			mSocket = socket;
 		}
 		
+		// Tells the caller we're too busy, rather than just dropping the connection.
+		void reject() {
+			TCPMessageHandler tcpMsgHandler = null;
+			try {
+				tcpMsgHandler = new TCPMessageHandler(mSocket);
+				sendErrorMsg(incId(), -1, tcpMsgHandler, RPCEncoding.JSON, BUSY_MSG);
+			} catch (IOException e) {
+				// nothing to be done - the socket is closed below
+			} finally {
+				if(tcpMsgHandler != null) tcpMsgHandler.discard();
+				try {
+					mSocket.close();
+				} catch (Exception e1) {
+					//shouldn't happen
+				}
+			}
+		}
+		
 		public void run() {
 			TCPMessageHandler tcpMsgHandler = null;
 			int callId = -1;
 			int id = incId();
+			boolean isPersistent = false;
 			try {
 				tcpMsgHandler = new TCPMessageHandler(mSocket);
 				tcpMsgHandler.setMaxReadLength(MAX_READ_SIZE);
@@ -191,93 +647,47 @@ public class RPCService extends NetLoadableService implements RPCServiceInterfac
 				// receive and validate the handshake "connect" request from the caller
 				JSONObject handshake = tcpMsgHandler.readMessageAsJSONObject();
 				
-				//Log.i(TAG, "handshake recieved");
-				
 				callId = handshake.getInt("id");
-				if(!handshake.getString("action").equals("connect")) {
-					sendErrorMsg(id, callId, tcpMsgHandler, "Initial message did not have the action 'connect'");
+				String handshakeError = checkHandshake(handshake);
+				if(handshakeError != null) {
+					sendErrorMsg(id, callId, tcpMsgHandler, mEncoding, handshakeError);
 					return;
 				}
 				
-				if(!handshake.getString("type").equals("control")) {
-					sendErrorMsg(id, callId, tcpMsgHandler,"Initial message did not have type 'control'");
-					return;
-				}
-				//Log.i(TAG, "handshake accepted");
+				// if we've reached here, then we're willing to connect - return the handshake,
+				// agreeing to keep the connection open if the caller asked and we're not already serving too many sessions
+				isPersistent = requestsKeepAlive(handshake) && startSession();
+				mAttachments = requestsAttachments(handshake);
+				mStreams = requestsStreams(handshake);
+				RPCEncoding encoding = RPCEncoding.choose(handshake);
+				JSONObject returnShake = handshakeReply(id, callId, isPersistent, mAttachments, mStreams, encoding);
 				
-				// if we've reached here, then we're willing to connect - return the handshake
-				JSONObject returnShake = new JSONObject();
-				returnShake.put("id", id);
-				returnShake.put("host", localIP());
-				returnShake.put("type", "OK");
-				returnShake.put("callid", callId);
-				
-				// send the handshake back to the caller
+				// send the handshake back to the caller; everything after it uses the chosen encoding
 				tcpMsgHandler.sendMessage(returnShake);
-				
-				//Log.i(TAG, "handshake returned");
+				mEncoding = encoding;
 
-				// now read the rpccall request from the caller
-				JSONObject request = tcpMsgHandler.readMessageAsJSONObject();
-				
-				//Log.i(TAG, "request read");
-				// make sure this is a method invocation request
-				if(!request.getString("type").equals("invoke")) {
-					sendErrorMsg(id, callId, tcpMsgHandler,"RPCCall request message did not have type 'invoke'.");
-					return;
-				}
-				
-				// now get all the info we need to invoke the method
-				String app = request.getString("app");
-				String method = request.getString("method");
-				JSONObject args = request.getJSONObject("args");
-				callId = request.getInt("id");
-				// validate the invocation request:
-				Log.i(TAG, "use service: " + app+"."+method);
-				if(!mServiceMethodMap.containsKey(app+"."+method)) {
-					Log.e(TAG, "not registered service: " + app+"."+method);
-					sendErrorMsg(id, callId, tcpMsgHandler, "The requested method is not registered - unable to invoke");
-					return;
-				}
-				
-				// attempt to invoke the requested method 
-				JSONObject returnObj = null;
-				id = incId();
-				try {
-					returnObj = mServiceMethodMap.get(app+"."+method).handleCall(args);
-					Log.i(TAG, "result message created");
-				} catch (Exception e) {
-					// create and send back error response for method invocation: (different from handshake errormsg!)
-					JSONObject methodErrMsg = new JSONObject();
-					methodErrMsg.put("id", id);
-					methodErrMsg.put("host", localIP());
-					methodErrMsg.put("callid", callId);
-					methodErrMsg.put("type", "ERROR");
-					methodErrMsg.put("message", e.toString());
-					methodErrMsg.put("callargs", request);
-					tcpMsgHandler.sendMessage(methodErrMsg);
-					return;
+				// now read the rpccall request(s) from the caller
+				boolean firstCall = true;
+				while(mIsUp && (firstCall || isPersistent)) {
+					JSONObject request;
+					try {
+						request = mEncoding.readMessage(tcpMsgHandler);
+					} catch(IOException e) {
+						// on a persistent connection, the caller closing it or letting it go idle is the normal way a session ends
+						if(firstCall) throw e;
+						return;
+					}
+					firstCall = false;
+					if(!handleInvoke(tcpMsgHandler, request)) return;
 				}
-				
-				// if there were no problems return response
-				// shouldn't have to worry about returnObj being null here, 
-				// unless that's what the method wanted to return
-				JSONObject response = new JSONObject();
-				response.put("id", id);
-				response.put("host", localIP());
-				response.put("callid", callId);
-				response.put("value", returnObj);
-				response.put("type", "OK");
-				
-				tcpMsgHandler.sendMessage(response);
-				//Log.i(TAG, "result message sent");
 			} catch (JSONException e) {
-				sendErrorMsg(id, callId, tcpMsgHandler, e.toString());
+				sendErrorMsg(id, callId, tcpMsgHandler, mEncoding, e.toString());
 			} catch (IOException e) {
-				sendErrorMsg(id, callId, tcpMsgHandler, e.toString());
+				sendErrorMsg(id, callId, tcpMsgHandler, mEncoding, e.toString());
 			} catch (Exception e) {
-				sendErrorMsg(id, callId, tcpMsgHandler, e.toString());
+				sendErrorMsg(id, callId, tcpMsgHandler, mEncoding, e.toString());
 			} finally {
+				if(isPersistent) endSession();
 				// discard tcpMsgHandler and close socket
 				if(tcpMsgHandler != null) {
 					try {
@@ -295,5 +705,34 @@ public class RPCService extends NetLoadableService implements RPCServiceInterfac
 				}	
 			}
 		}
+		
+		/**
+		 * Validates and performs a single invocation request, sending the response to the caller.
+		 * @return false if the request was malformed or the response couldn't be sent, and the connection should be closed; true otherwise
+		 */
+		private boolean handleInvoke(TCPMessageHandler tcpMsgHandler, JSONObject request) throws JSONException, IOException {
+			// make sure this is a method invocation request
+			if(!request.getString("type").equals("invoke")) {
+				sendErrorMsg(incId(), request.optInt("id", -1), tcpMsgHandler, mEncoding, "RPCCall request message did not have type 'invoke'.");
+				return false;
+			}
+			JSONObject response = invoke(request);
+			Payload payload;
+			try {
+				payload = extractPayload(response, mAttachments, mStreams);
+			} catch(IOException e) {
+				// the result's stream couldn't be read; nothing has been sent yet, so the caller can be told
+				response = errorMsg(incId(), request.getInt("id"), e.toString());
+				payload = null;
+			}
+			try {
+				sendResponse(tcpMsgHandler, mEncoding, response, payload);
+			} catch(IOException e) {
+				// an error message now would be taken for part of the response; all we can do is close the connection
+				Log.w(TAG, "Sending response failed: " + e.getMessage());
+				return false;
+			}
+			return true;
+		}
 	}
 }
@@ -9,7 +9,7 @@ import java.net.UnknownHostException;
  */
 public interface RPCServiceInterface {
 
-	public void registerHandler(String serviceName, String methodName, RPCCallableMethod method) throws Exception;
+	public void registerHandler(String serviceName, String methodName, RPCHandler handler) throws Exception;
 	
 	public String localIP() throws UnknownHostException;
 	public int localPort();
@@ -0,0 +1,131 @@
+package edu.uw.cs.cse461.Net.TCPMessageHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compares the original TCPMessageHandler framing code with the current one, by timing
+ * round trips of messages from 1KB to 4MB over a loopback connection.
+ * <p>
+ * The "original" path is reproduced here: the length prefix and the payload are sent with
+ * two writes on the unbuffered socket stream, and every read allocates the prefix, the message,
+ * and a copy of the message.  The "current" path is sendMessage() plus readMessage() into a
+ * reused buffer.  Both sockets are left with Nagle enabled, their default.
+ * <p>
+ * Run it as a plain Java program; it needs nothing but this package.
+ */
+public class TCPBenchmark {
+	private static final int[] SIZES = { 1024, 16*1024, 256*1024, 4*1024*1024 };
+	private static final long BYTES_PER_TRIAL = 64L*1024*1024;
+	private static final int MIN_ROUND_TRIPS = 20;
+	private static final int MAX_ROUND_TRIPS = 1000;
+
+	public static void main(String[] args) throws Exception {
+		ServerSocket serverSocket = new ServerSocket(0);
+		Thread echoThread = new EchoThread(serverSocket);
+		echoThread.setDaemon(true);
+		echoThread.start();
+
+		Socket socket = new Socket("localhost", serverSocket.getLocalPort());
+		TCPMessageHandler handler = new TCPMessageHandler(socket);
+		InputStream rawIn = socket.getInputStream();
+		OutputStream rawOut = socket.getOutputStream();
+
+		System.out.println(String.format("%10s %8s %14s %14s %10s", "size", "trips", "original ms", "current ms", "speedup"));
+		for ( int size : SIZES ) {
+			byte[] msg = new byte[size];
+			int trips = (int)Math.max(MIN_ROUND_TRIPS, Math.min(MAX_ROUND_TRIPS, BYTES_PER_TRIAL/size));
+
+			// both sides switch paths together: tell the echo thread which one to use
+			handler.sendMessage(new byte[] { 0 });
+			handler.readMessageAsBytes();
+			long start = System.nanoTime();
+			for ( int i=0; i<trips; i++ ) {
+				originalSend(rawOut, msg);
+				originalRead(rawIn);
+			}
+			double originalMs = (System.nanoTime() - start) / 1e6 / trips;
+
+			handler.sendMessage(new byte[] { 1 });
+			handler.readMessageAsBytes();
+			ByteBuffer buf = null;
+			start = System.nanoTime();
+			for ( int i=0; i<trips; i++ ) {
+				handler.sendMessage(msg);
+				buf = handler.readMessage(buf);
+			}
+			double currentMs = (System.nanoTime() - start) / 1e6 / trips;
+
+			System.out.println(String.format("%10d %8d %14.3f %14.3f %9.2fx", size, trips, originalMs, currentMs, originalMs/currentMs));
+		}
+		socket.close();
+		serverSocket.close();
+	}
+
+	// The framing code as it originally was
+	private static void originalSend(OutputStream output, byte[] buf) throws IOException {
+		output.write(TCPMessageHandler.intToByte(buf.length));
+		output.write(buf);
+	}
+
+	private static byte[] originalRead(InputStream input) throws IOException {
+		byte[] msgLenBytes = new byte[4];
+		readFully(input, msgLenBytes);
+		int msgLen = TCPMessageHandler.byteToInt(msgLenBytes);
+		byte[] msgHolder = new byte[msgLen];
+		readFully(input, msgHolder);
+		return Arrays.copyOf(msgHolder, msgLen);
+	}
+
+	private static void readFully(InputStream input, byte[] buf) throws IOException {
+		int total = 0;
+		while ( total < buf.length ) {
+			int n = input.read(buf, total, buf.length - total);
+			if ( n < 0 ) throw new IOException("End of stream has already been reached.");
+			total += n;
+		}
+	}
+
+	/**
+	 * Echoes every message back.  A one byte message switches paths: 0 for original, 1 for current.
+	 */
+	private static class EchoThread extends Thread {
+		private ServerSocket mServerSocket;
+
+		EchoThread(ServerSocket serverSocket) {
+			mServerSocket = serverSocket;
+		}
+
+		public void run() {
+			try {
+				Socket socket = mServerSocket.accept();
+				TCPMessageHandler handler = new TCPMessageHandler(socket);
+				InputStream rawIn = socket.getInputStream();
+				OutputStream rawOut = socket.getOutputStream();
+				boolean original = false;
+				ByteBuffer buf = null;
+				while ( true ) {
+					if ( original ) {
+						byte[] msg = originalRead(rawIn);
+						if ( msg.length == 1 ) {
+							original = msg[0] == 0;
+							handler.sendMessage(msg);
+						}
+						else originalSend(rawOut, msg);
+					} else {
+						buf = handler.readMessage(buf);
+						if ( buf.limit() == 1 ) original = buf.get(0) == 0;
+						handler.sendMessage(buf.array(), buf.arrayOffset(), buf.limit());
+					}
+				}
+			} catch (IOException e) {
+				// client closed the connection
+			}
+		}
+	}
+}
@@ -1,12 +1,12 @@
 package edu.uw.cs.cse461.Net.TCPMessageHandler;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -38,11 +38,20 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	public static final String ADDITIONAL_OPTIONS_KEY = "options";
 	
 	private static final int LENGTH_PREFIX_SIZE = 4; //bytes
+	private static final int INPUT_BUFFER_SIZE = 8*1024; //bytes
+	// Messages up to this size are copied behind their length prefix and sent with a single write.
+	// Larger ones are sent with two writes; at that size the extra system call doesn't matter.
+	private static final int COALESCE_LIMIT = 64*1024; //bytes
 	
 	private Socket socket = null;
 	private InputStream input = null;
 	private OutputStream output = null;
 	private int maxReadLength = Integer.MAX_VALUE;
+	private byte[] lengthBuf = new byte[LENGTH_PREFIX_SIZE];  // reused for every length prefix read
+	private byte[] sendLengthBuf = new byte[LENGTH_PREFIX_SIZE];  // separate from lengthBuf; one thread may send while another reads
+	private byte[] sendBuf = null;                            // reused for coalescing prefix and payload; grown on demand
+	private ByteBuffer readBuf = null;                        // reused for messages decoded into Strings, up to COALESCE_LIMIT bytes
+	private volatile long totalRead = 0;                      // total read off the socket, length prefixes included
 	
 	//--------------------------------------------------------------------------------------
 	// helper routines
@@ -75,6 +84,20 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 		b.order(ByteOrder.LITTLE_ENDIAN);
 		return b.getInt();
 	}
+	
+	/**
+	 * Allocation-free versions of intToByte() and byteToInt(), used on the send and read paths.
+	 */
+	private static void putLength(byte[] buf, int i) {
+		buf[0] = (byte)i;
+		buf[1] = (byte)(i >>> 8);
+		buf[2] = (byte)(i >>> 16);
+		buf[3] = (byte)(i >>> 24);
+	}
+	
+	private static int getLength(byte[] buf) {
+		return (buf[0] & 0xff) | (buf[1] & 0xff) << 8 | (buf[2] & 0xff) << 16 | (buf[3] & 0xff) << 24;
+	}
 
 	/**
 	 * Constructor, associating this TCPMessageHandler with a connected socket.
@@ -85,7 +108,9 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 		if(sock == null)
 			throw new IllegalArgumentException("Socket cannot be null");
 		socket = sock;
-		input = socket.getInputStream();
+		// buffering lets a length prefix and a small message arrive with one system call;
+		// reads of large messages bypass the buffer
+		input = new BufferedInputStream(socket.getInputStream(), INPUT_BUFFER_SIZE);
 		output = socket.getOutputStream();
 	}
 	
@@ -128,8 +153,25 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	//--------------------------------------------------------------------------------------
 	
 	public void sendMessage(byte[] buf) throws IOException {		
-			output.write(intToByte(buf.length));
-			output.write(buf);
+		sendMessage(buf, 0, buf.length);
+	}
+	
+	/**
+	 * Sends len bytes of buf, starting at offset off, as one message.  The length prefix and
+	 * the payload go to the socket in a single write, unless the message is large.
+	 */
+	public void sendMessage(byte[] buf, int off, int len) throws IOException {
+		if(len > COALESCE_LIMIT) {
+			putLength(sendLengthBuf, len);
+			output.write(sendLengthBuf);
+			output.write(buf, off, len);
+			return;
+		}
+		if(sendBuf == null || sendBuf.length < LENGTH_PREFIX_SIZE + len)
+			sendBuf = new byte[Math.max(LENGTH_PREFIX_SIZE + len, 1024)];
+		putLength(sendBuf, len);
+		System.arraycopy(buf, off, sendBuf, LENGTH_PREFIX_SIZE, len);
+		output.write(sendBuf, 0, LENGTH_PREFIX_SIZE + len);
 	}
 	
 	public void sendMessage(String str) throws IOException {
@@ -149,40 +191,62 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	//--------------------------------------------------------------------------------------
 	
 	public byte[] readMessageAsBytes() throws IOException {
-		
-		int bytesRead = 0;
-		int msgLengthBytesRead = 0;
-		byte[] msgLenBytes = new byte[LENGTH_PREFIX_SIZE];
-		while(msgLengthBytesRead < LENGTH_PREFIX_SIZE) {
-			bytesRead = input.read(msgLenBytes, msgLengthBytesRead, LENGTH_PREFIX_SIZE - msgLengthBytesRead);
-			if(bytesRead > 0) {
-				msgLengthBytesRead += bytesRead;	
-			} else if(bytesRead < 0) {
-				throw new IOException("End of stream has already been reached.");
-			}
-		}
-		
-		int msgLen = byteToInt(msgLenBytes);
+		int msgLen = readLength();
+		byte[] msgHolder = new byte[msgLen];
+		readFully(msgHolder, 0, msgLen);
+		return msgHolder;
+	}
+	
+	/**
+	 * Reads a message into a caller-supplied buffer, avoiding a per-message allocation when the
+	 * buffer is reused across calls.  If the buffer is null or too small, a larger one is allocated.
+	 * @param buf A buffer backed by an accessible array, or null
+	 * @return The buffer holding the message (buf, if it was big enough), with position 0 and limit the message length
+	 */
+	public ByteBuffer readMessage(ByteBuffer buf) throws IOException {
+		int msgLen = readLength();
+		if(buf == null || !buf.hasArray() || buf.capacity() < msgLen)
+			buf = ByteBuffer.allocate(msgLen);
+		buf.clear();
+		readFully(buf.array(), buf.arrayOffset(), msgLen);
+		buf.limit(msgLen);
+		return buf;
+	}
+	
+	// reads and validates the length prefix of the next message
+	private int readLength() throws IOException {
+		readFully(lengthBuf, 0, LENGTH_PREFIX_SIZE);
+		int msgLen = getLength(lengthBuf);
 		if(msgLen < 0 || msgLen > maxReadLength) {
 			throw new IOException("Recieved invalid message length: " + msgLen);
 		}
-		byte[] msgHolder = new byte[msgLen];
+		return msgLen;
+	}
+	
+	private void readFully(byte[] buf, int off, int len) throws IOException {
 		int totalBytesRead = 0;
-		while(totalBytesRead < msgLen) {
-			bytesRead = input.read(msgHolder, totalBytesRead, msgLen - totalBytesRead);
-			if(bytesRead > 0) {
-				totalBytesRead += bytesRead;	
-			} else if(bytesRead < 0) {
+		while(totalBytesRead < len) {
+			int bytesRead = input.read(buf, off + totalBytesRead, len - totalBytesRead);
+			if(bytesRead < 0) {
 				throw new IOException("End of stream has already been reached.");
 			}
-		}	
-		
-		return Arrays.copyOf(msgHolder, totalBytesRead);
+			totalBytesRead += bytesRead;
+			totalRead += bytesRead;
+		}
+	}
+	
+	/**
+	 * The number of bytes read off the connection so far, including partial messages.
+	 */
+	public long bytesRead() {
+		return totalRead;
 	}
 	
 	public String readMessageAsString() throws IOException {
-		byte[] msgBytes = readMessageAsBytes();
-		return new String(msgBytes);
+		ByteBuffer msg = readMessage(readBuf);
+		// keep the buffer for next time, unless it's so big that holding onto it would waste memory
+		if(msg.capacity() <= COALESCE_LIMIT) readBuf = msg;
+		return new String(msg.array(), msg.arrayOffset(), msg.limit());
 	}
 	
 	public JSONArray readMessageAsJSONArray() throws IOException, JSONException {
@@ -1,6 +1,7 @@
 package edu.uw.cs.cse461.Net.TCPMessageHandler;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -21,6 +22,7 @@ public interface TCPMessageHandlerInterface {
 	//--------------------------------------------------------------------------------------
 	
 	public void sendMessage(byte[] buf) throws IOException;
+	public void sendMessage(byte[] buf, int off, int len) throws IOException;
 	public void sendMessage(String str) throws IOException;
 	public void sendMesssage(JSONArray jsArray) throws IOException;
 	public void sendMessage(JSONObject jsObject) throws IOException;
@@ -33,6 +35,7 @@ public interface TCPMessageHandlerInterface {
 	//--------------------------------------------------------------------------------------
 	
 	public byte[] readMessageAsBytes() throws IOException;
+	public ByteBuffer readMessage(ByteBuffer buf) throws IOException;  // reuses buf if it's big enough
 	public String readMessageAsString() throws IOException;
 	public JSONArray readMessageAsJSONArray() throws IOException, JSONException;
 	public JSONObject readMessageAsJSONObject() throws IOException, JSONException;
@@ -8,10 +8,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -29,7 +31,6 @@ import edu.uw.cs.cse461.Net.RPC.RPCService;
 import edu.uw.cs.cse461.SNet.SNetDB461.CommunityRecord;
 import edu.uw.cs.cse461.SNet.SNetDB461.Photo;
 import edu.uw.cs.cse461.SNet.SNetDB461.PhotoRecord;
-import edu.uw.cs.cse461.util.Base64;
 import edu.uw.cs.cse461.util.Log;
 
 
@@ -43,6 +44,7 @@ public class SNetController {
 	private static final String TAG="SNetController";
 	private static final int MAX_LENGTH_PHOTO_FETCH = NetBase.theNetBase().config().getAsInt("snet.fetchphoto_maxlength", RPCService.MAX_READ_SIZE/2, 1024, RPCService.MAX_READ_SIZE*3/4-4*1024, TAG);
 	private static final int MAX_PHOTO_XFER_RETRY = 4;
+	private static final int PHOTO_FETCH_WINDOW = NetBase.theNetBase().config().getAsInt("snet.fetchphoto_window", 3, 1, TAG);
 
 	/**
 	 * A full path name to the sqlite database.
@@ -468,10 +470,6 @@ public class SNetController {
 						db.discard();
 				}
 				
-				JSONObject fetchPhotoArgs = new JSONObject();
-				fetchPhotoArgs.put("photohash", photoHash);
-				fetchPhotoArgs.put("maxlength", MAX_LENGTH_PHOTO_FETCH);
-				int numBytesRecieved = -1;
 				int offset = 0;
 				File newPhoto = new File(galleryDir, photoHash+".jpg");
 				OutputStream fstream = null;
@@ -481,43 +479,95 @@ public class SNetController {
 					int attempts = 0;
 					fstream = new FileOutputStream(newPhoto);
 					
-					do {
+					// A remote side that can stream the photo sends all of it in reply to one request.  One that can't
+					// ignores the "stream" argument and sends just the first chunk; the rest is fetched chunk by chunk below.
+					boolean done = false;
+					try {
+						JSONObject fetchPhotoArgs = new JSONObject();
+						fetchPhotoArgs.put("photohash", photoHash);
+						fetchPhotoArgs.put("maxlength", MAX_LENGTH_PHOTO_FETCH);
+						fetchPhotoArgs.put("offset", 0);
+						fetchPhotoArgs.put("stream", true);
+						JSONObject dataReturned = RPCCall.invoke(memConnectInfo.ip(), memConnectInfo.port(), "snet", "fetchPhoto", fetchPhotoArgs);
+						int numBytesRecieved = dataReturned.getInt("length");
+						if(numBytesRecieved > 0) {
+							InputStream photoStream = RPCCall.getStream(dataReturned, "photodata");
+							try {
+								byte[] buf = new byte[64*1024];
+								int n;
+								while((n = photoStream.read(buf)) >= 0) {
+									fstream.write(buf, 0, n);
+									offset += n;
+								}
+							} finally {
+								photoStream.close();
+							}
+							if(offset != numBytesRecieved)
+								throw new IOException("expected " + numBytesRecieved + " bytes of photo but recieved " + offset);
+						}
+						done = numBytesRecieved == 0 || dataReturned.opt("photodata") instanceof InputStream;
+					} catch(Exception e) {
+						// start again from the beginning, chunk by chunk
+						e.printStackTrace();
+						fstream.close();
+						fstream = new FileOutputStream(newPhoto);
+						offset = 0;
+					}
+					
+					// Keep up to PHOTO_FETCH_WINDOW chunk requests outstanding on the connection, each for the chunk
+					// following the previous one, so the round trips overlap.  If a reply isn't for the offset we've
+					// reached (the remote side sent a short chunk), the requests in flight are for the wrong offsets:
+					// drop them and start again from where we are.
+					LinkedList<Future<JSONObject>> inFlight = new LinkedList<Future<JSONObject>>();
+					int nextOffset = offset;
+					while(!done) {
 						try{
-							fetchPhotoArgs.put("offset", offset);
 							JSONObject dataReturned = null;
 							try {
-								Log.i(TAG, "SENT PHOTO REQUEST: " + fetchPhotoArgs.toString());
-								dataReturned = RPCCall.invoke(memConnectInfo.ip(), memConnectInfo.port(), "snet", "fetchPhoto", fetchPhotoArgs);
-								String photodata = (String) dataReturned.remove("photodata");
+								while(inFlight.size() < PHOTO_FETCH_WINDOW) {
+									JSONObject fetchPhotoArgs = new JSONObject();
+									fetchPhotoArgs.put("photohash", photoHash);
+									fetchPhotoArgs.put("maxlength", MAX_LENGTH_PHOTO_FETCH);
+									fetchPhotoArgs.put("offset", nextOffset);
+									Log.i(TAG, "SENT PHOTO REQUEST: " + fetchPhotoArgs.toString());
+									inFlight.add(RPCCall.invokeAsync(memConnectInfo.ip(), memConnectInfo.port(), "snet", "fetchPhoto", fetchPhotoArgs));
+									nextOffset += MAX_LENGTH_PHOTO_FETCH;
+								}
+								dataReturned = inFlight.removeFirst().get();
+								Object photodata = dataReturned.remove("photodata");
 								Log.i(TAG, "RETURNED PHOTO REQUEST: " + dataReturned.toString());
 								dataReturned.put("photodata", photodata);
 							} catch(Exception e) {
 								throw new JSONException(e.getMessage());
 							}
-							numBytesRecieved = dataReturned.getInt("length");
+							int numBytesRecieved = dataReturned.getInt("length");
 							int offsetRecieved = dataReturned.getInt("offset"); 
 							if(numBytesRecieved < 0 || numBytesRecieved > MAX_LENGTH_PHOTO_FETCH) {
 								throw new JSONException("invalid data size.  bytes recieved must be negative and less than " + MAX_LENGTH_PHOTO_FETCH);
 							} else if(offset != offsetRecieved) {
-								throw new JSONException("invalid offset.  offset must match recieved offset");
+								inFlight.clear();
+								nextOffset = offset;
 							} else if(numBytesRecieved > 0) {
-								byte[] bytesRecieved = Base64.decode(dataReturned.getString("photodata"));
-								bytesRecieved = Arrays.copyOf(bytesRecieved, numBytesRecieved);
-								fstream.write(bytesRecieved);
+								byte[] bytesRecieved = RPCCall.getBinary(dataReturned, "photodata");
+								fstream.write(bytesRecieved, 0, numBytesRecieved);
 								offset += numBytesRecieved;
+							} else {
+								done = true;
 							}
 							attempts = 0;
 						} catch(JSONException e) {
 							e.printStackTrace();
 							if(++attempts > MAX_PHOTO_XFER_RETRY)
 								throw new DB461Exception("could not complete photo transfer");
+							inFlight.clear();
+							nextOffset = offset;
 							try {
 								Thread.sleep((int) (Math.random()*attempts*1000 + 100));
 							} catch(InterruptedException e1) {
 								//shouldn't happen
 							}
 						}
-					} while(numBytesRecieved > 0);
+					}
 					//if fstream fail, delete file
 					
 					db = new SNetDB461(this.DBName());
@@ -684,8 +734,11 @@ public class SNetController {
 	 * Callee side of fetchPhoto (fetch one photo).  To fetch an image file, call this
 	 * method repeatedly, starting at offset 0 and incrementing by the returned length each
 	 * subsequent call.  Repeat until a length of 0 comes back.
-	 * @param args {photoHash: int, maxlength: int, offset: int}
-	 * @return {photoHash: int, photoData: String (base64 encoded byte[]), length: int, offset: int}.  The photoData field may
+	 * <p>
+	 * Alternatively, if stream is true, the rest of the photo from offset on comes back in one reply,
+	 * streamed (see RPCService), and maxlength is ignored.
+	 * @param args {photoHash: int, maxlength: int, offset: int, stream: boolean (optional)}
+	 * @return {photoHash: int, photoData: byte[] or InputStream (see RPCCall.getStream()), length: int, offset: int}.  The photoData field may
 	 *     not exist if the length is 0.
 	 * @throws Exception
 	 */
@@ -717,6 +770,17 @@ public class SNetController {
 				bytesRead = fstream.read(photoData, 0, Math.min(toOffset, MAX_LENGTH_PHOTO_FETCH));
 				toOffset -= bytesRead;
 			}
+			if(args.optBoolean("stream")) {
+				// the stream is closed by the RPC service once it has been sent
+				int length = (int)Math.max(photoFile.length() - offset, 0);
+				result.put("photodata", length > 0 ? fstream : (Object)"");
+				result.put("photohash", pr.hash);
+				result.put("length", length);
+				result.put("offset", offset);
+				if(length > 0) fstream = null;
+				Log.d(TAG, "fetch photo result: " + result.toString());
+				return result;
+			}
 			int bytesToRead = Math.min(maxLength, MAX_LENGTH_PHOTO_FETCH);
 			photoData = new byte[bytesToRead];
 			int totalBytesRead = 0;
@@ -732,7 +796,8 @@ public class SNetController {
 				result.put("length", 0);
 				result.put("offset", offset);
 			} else {
-				result.put("photodata", Base64.encodeBytes(photoData, 0, totalBytesRead));
+				// sent as a raw attachment, or Base64 encoded for callers that don't accept attachments
+				result.put("photodata", ByteBuffer.wrap(photoData, 0, totalBytesRead));
 				result.put("photohash", pr.hash);
 				result.put("length", totalBytesRead);
 				result.put("offset", offset);